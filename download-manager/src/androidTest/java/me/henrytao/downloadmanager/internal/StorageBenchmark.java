@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the time per operation of the storage hot paths against the ContentValues and per row column lookups they replaced. The
+ * results are logged under the StorageBenchmark tag, e.g. with {@code adb logcat -s StorageBenchmark}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StorageBenchmark {
+
+  private static final int OPERATIONS = 2000;
+
+  private static final String TAG = "StorageBenchmark";
+
+  private static Task createTask(long id) {
+    return new Task(id, "tag-" + id, Uri.parse("http://example.com/" + id), "title", "description", Uri.parse("file:///dest/" + id),
+        Uri.parse("file:///temp/" + id), 3, 0, Task.State.ACTIVE, 1024, null, 1, null, null, Collections.<Uri>emptyList(), null, false);
+  }
+
+  private static ContentValues toContentValues(Task task) {
+    ContentValues values = new ContentValues();
+    values.put(Task.Fields.ID, task.getId());
+    values.put(Task.Fields.TAG, task.getTag());
+    values.put(Task.Fields.URI, task.getUri().toString());
+    values.put(Task.Fields.TITLE, task.getTitle());
+    values.put(Task.Fields.DESCRIPTION, task.getDescription());
+    values.put(Task.Fields.DEST_URI, task.getDestUri().toString());
+    values.put(Task.Fields.TEMP_URI, task.getTempUri().toString());
+    values.put(Task.Fields.MAX_RETRY, task.getMaxRetry());
+    values.put(Task.Fields.RETRY_COUNT, task.getRetryCount());
+    values.put(Task.Fields.STATE, task.getState().toInt());
+    values.put(Task.Fields.CONTENT_LENGTH, task.getContentLength());
+    values.put(Task.Fields.MD5, task.getMd5());
+    values.put(Task.Fields.MD5_STATE, task.getMd5State());
+    values.put(Task.Fields.SEGMENT_COUNT, task.getSegmentCount());
+    values.put(Task.Fields.VALIDATOR, task.getValidator());
+    values.putNull(Task.Fields.MIRRORS);
+    values.put(Task.Fields.CHECKSUM, task.getChecksum());
+    values.put(Task.Fields.REFRESH, task.isRefresh() ? 1 : 0);
+    return values;
+  }
+
+  private SQLiteDatabase mDb;
+
+  @Before
+  public void setUp() {
+    mDb = SQLiteDatabase.create(null);
+    mDb.execSQL("CREATE TABLE " + Task.NAME + " ( " + Task.Fields.ID + " INTEGER PRIMARY KEY , "
+        + TextUtils.join(" , ", Arrays.copyOfRange(Task.COLUMNS, 1, Task.COLUMNS.length)) + " )");
+    mDb.execSQL("CREATE TABLE " + Segment.NAME + " ( " + TextUtils.join(" , ", Segment.COLUMNS)
+        + " , PRIMARY KEY ( " + Segment.Fields.TASK_ID + " , " + Segment.Fields.INDEX + " ) )");
+  }
+
+  @After
+  public void tearDown() {
+    mDb.close();
+  }
+
+  @Test
+  public void testInsertSegment() {
+    SQLiteStatement statement = mDb.compileStatement(replace(Segment.NAME, Segment.COLUMNS));
+    report("insert segment",
+        measure(id -> {
+          ContentValues values = new ContentValues();
+          values.put(Segment.Fields.TASK_ID, id);
+          values.put(Segment.Fields.INDEX, 0);
+          values.put(Segment.Fields.START, 0);
+          values.put(Segment.Fields.END, 1024);
+          values.put(Segment.Fields.POSITION, 0);
+          mDb.insertWithOnConflict(Segment.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }),
+        measure(id -> {
+          new Segment(0, 0, 1024, 0).bind(statement, id);
+          statement.executeInsert();
+        }));
+    assertThat(DatabaseUtils.queryNumEntries(mDb, Segment.NAME), equalTo((long) OPERATIONS));
+  }
+
+  @Test
+  public void testMapTasks() {
+    SQLiteStatement statement = mDb.compileStatement(replace(Task.NAME, Task.COLUMNS));
+    measure(id -> {
+      createTask(id).bind(statement);
+      statement.executeInsert();
+    });
+    // two measures of two passes each
+    List<Task> tasks = new ArrayList<>();
+    report("map task",
+        measureRows(cursor -> {
+          do {
+            // a mapper per row looks every column up again, as Task.create did
+            tasks.add(new Task.Mapper(cursor).map(cursor));
+          } while (cursor.moveToNext());
+        }),
+        measureRows(cursor -> {
+          Task.Mapper mapper = new Task.Mapper(cursor);
+          do {
+            tasks.add(mapper.map(cursor));
+          } while (cursor.moveToNext());
+        }));
+    assertThat(tasks.size(), equalTo(4 * OPERATIONS));
+  }
+
+  @Test
+  public void testReplaceTask() {
+    SQLiteStatement statement = mDb.compileStatement(replace(Task.NAME, Task.COLUMNS));
+    report("replace task",
+        measure(id -> mDb.insertWithOnConflict(Task.NAME, null, toContentValues(createTask(id)), SQLiteDatabase.CONFLICT_REPLACE)),
+        measure(id -> {
+          createTask(id).bind(statement);
+          statement.executeInsert();
+        }));
+    assertThat(DatabaseUtils.queryNumEntries(mDb, Task.NAME), equalTo((long) OPERATIONS));
+  }
+
+  @Test
+  public void testUpdatePosition() {
+    SQLiteStatement insert = mDb.compileStatement(replace(Segment.NAME, Segment.COLUMNS));
+    measure(id -> {
+      new Segment(0, 0, 1024, 0).bind(insert, id);
+      insert.executeInsert();
+    });
+    String where = Segment.Fields.TASK_ID + " = ? AND " + Segment.Fields.INDEX + " = ?";
+    SQLiteStatement statement = mDb.compileStatement("UPDATE " + Segment.NAME + " SET " + Segment.Fields.POSITION + " = ? WHERE " + where);
+    report("update position",
+        measure(id -> {
+          ContentValues values = new ContentValues();
+          values.put(Segment.Fields.POSITION, id);
+          mDb.update(Segment.NAME, values, where, new String[]{String.valueOf(id), "0"});
+        }),
+        measure(id -> {
+          statement.bindLong(1, id);
+          statement.bindLong(2, id);
+          statement.bindLong(3, 0);
+          statement.executeUpdateDelete();
+        }));
+    assertThat(DatabaseUtils.longForQuery(mDb, "SELECT SUM(" + Segment.Fields.POSITION + ") FROM " + Segment.NAME, null),
+        equalTo((long) OPERATIONS * (OPERATIONS - 1) / 2));
+  }
+
+  /**
+   * Runs the operation for ids 0 until {@link #OPERATIONS} in one transaction, as a flush does. It runs twice, the first pass warms
+   * up the statement cache and the code.
+   *
+   * @return the time per operation in nanoseconds of the second pass.
+   */
+  private long measure(Operation operation) {
+    long elapsed = 0;
+    for (int i = 0; i < 2; i++) {
+      long startedAt = System.nanoTime();
+      mDb.beginTransaction();
+      try {
+        for (long id = 0; id < OPERATIONS; id++) {
+          operation.run(id);
+        }
+        mDb.setTransactionSuccessful();
+      } finally {
+        mDb.endTransaction();
+      }
+      elapsed = System.nanoTime() - startedAt;
+    }
+    return elapsed / OPERATIONS;
+  }
+
+  /**
+   * Maps every task row twice, the first pass warms up the cursor window and the code.
+   *
+   * @return the time per row in nanoseconds of the second pass.
+   */
+  private long measureRows(RowMapper mapper) {
+    long elapsed = 0;
+    for (int i = 0; i < 2; i++) {
+      Cursor cursor = mDb.query(Task.NAME, null, null, null, null, null, null);
+      try {
+        long startedAt = System.nanoTime();
+        if (cursor.moveToFirst()) {
+          mapper.map(cursor);
+        }
+        elapsed = System.nanoTime() - startedAt;
+      } finally {
+        cursor.close();
+      }
+    }
+    return elapsed / OPERATIONS;
+  }
+
+  private String replace(String table, String[] columns) {
+    String[] values = new String[columns.length];
+    Arrays.fill(values, "?");
+    return "INSERT OR REPLACE INTO " + table + " ( " + TextUtils.join(" , ", columns) + " ) VALUES ( " + TextUtils.join(" , ", values)
+        + " )";
+  }
+
+  private void report(String name, long baseline, long compiled) {
+    Log.i(TAG, String.format(Locale.US, "%s | baseline %d ns/op | now %d ns/op | %.2fx", name, baseline, compiled,
+        compiled > 0 ? (double) baseline / compiled : 0));
+  }
+
+  private interface Operation {
+
+    void run(long id);
+  }
+
+  private interface RowMapper {
+
+    void map(Cursor cursor);
+  }
+}
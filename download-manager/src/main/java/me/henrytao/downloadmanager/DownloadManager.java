@@ -19,18 +19,28 @@ package me.henrytao.downloadmanager;
 import com.evernote.android.job.JobRequest;
 
 import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import me.henrytao.downloadmanager.internal.BufferPool;
 import me.henrytao.downloadmanager.internal.Bus;
+import me.henrytao.downloadmanager.internal.ContentCache;
+import me.henrytao.downloadmanager.internal.Dispatcher;
 import me.henrytao.downloadmanager.internal.Downloader;
+import me.henrytao.downloadmanager.internal.Hedger;
 import me.henrytao.downloadmanager.internal.JobService;
 import me.henrytao.downloadmanager.internal.Logger;
 import me.henrytao.downloadmanager.internal.Storage;
 import me.henrytao.downloadmanager.internal.Task;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import rx.Observable;
 
 /**
@@ -39,18 +49,62 @@ import rx.Observable;
 
 public class DownloadManager {
 
+  private static final String CACHE_DIRECTORY = "download-manager";
+
+  private static final boolean DEFAULT_ADAPTIVE_BUFFER_SIZE = true;
+
   private static final long DEFAULT_BACKOFF_IN_MILLISECONDS = 2000;
 
   private static final JobRequest.BackoffPolicy DEFAULT_BACKOFF_POLICY = JobRequest.BackoffPolicy.LINEAR;
 
+  private static final long DEFAULT_BUFFER_POOL_SIZE = 2 * 1024 * 1024;
+
   private static final int DEFAULT_BUFFER_SIZE = 2048;
 
+  private static final long DEFAULT_CACHE_SIZE_IN_BYTES = 0;
+
+  private static final long DEFAULT_CHECKPOINT_INTERVAL_IN_MILLISECONDS = 0;
+
+  private static final long DEFAULT_CHECKPOINT_STEP_IN_BYTES = 1024 * 1024;
+
+  private static final int DEFAULT_CONNECTION_POOL_SIZE = 0;
+
+  private static final long DEFAULT_CONNECT_TIMEOUT_IN_MILLISECONDS = 0;
+
   private static final long DEFAULT_EXECUTION_WINDOW_END_IN_MILLISECONDS = 3000;
 
   private static final long DEFAULT_EXECUTION_WINDOW_START_IN_MILLISECONDS = 2000;
 
+  private static final long DEFAULT_HEDGE_DELAY_IN_MILLISECONDS = 1000;
+
+  private static final int DEFAULT_HEDGE_PERCENTILE = 0;
+
+  private static final long DEFAULT_KEEP_ALIVE_IN_MILLISECONDS = 5 * 60 * 1000;
+
+  private static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+  private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 3;
+
+  private static final int DEFAULT_MIN_BUFFER_SIZE = 2048;
+
   private static final boolean DEFAULT_PERSISTED = true;
 
+  private static final int DEFAULT_PIPELINE_DEPTH = 0;
+
+  private static final boolean DEFAULT_PREALLOCATE = false;
+
+  private static final long DEFAULT_PROGRESS_INTERVAL_IN_MILLISECONDS = 200;
+
+  private static final long DEFAULT_PROGRESS_STEP_IN_BYTES = 0;
+
+  private static final long DEFAULT_READ_TIMEOUT_IN_MILLISECONDS = 0;
+
+  private static final int DEFAULT_SEGMENT_COUNT = 1;
+
+  private static final long DEFAULT_WRITE_TIMEOUT_IN_MILLISECONDS = 0;
+
   public static boolean DEBUG = false;
 
   private static volatile DownloadManager sInstance;
@@ -81,12 +135,41 @@ public class DownloadManager {
     return sInstance;
   }
 
+  private static OkHttpClient createClient(Config config) {
+    // share the connection pool and dispatcher of the app when it gives its own client
+    OkHttpClient.Builder builder = config.client != null ? config.client.newBuilder() : new OkHttpClient.Builder();
+    if (config.connectionPoolSize > 0) {
+      builder.connectionPool(new ConnectionPool(config.connectionPoolSize, config.keepAliveInMilliseconds, TimeUnit.MILLISECONDS));
+    }
+    if (config.protocols != null) {
+      builder.protocols(config.protocols);
+    }
+    if (config.connectTimeoutInMilliseconds > 0) {
+      builder.connectTimeout(config.connectTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+    if (config.readTimeoutInMilliseconds > 0) {
+      builder.readTimeout(config.readTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+    if (config.writeTimeoutInMilliseconds > 0) {
+      builder.writeTimeout(config.writeTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+    return builder.build();
+  }
+
+  private final BufferPool mBufferPool;
+
   private final Bus mBus;
 
   private final Config mConfig;
 
+  private final ContentCache mContentCache;
+
+  private final Dispatcher mDispatcher;
+
   private final Downloader mDownloader;
 
+  private final Hedger mHedger;
+
   private final JobService mJobService;
 
   private final Logger mLogger;
@@ -97,10 +180,15 @@ public class DownloadManager {
     context = context.getApplicationContext();
     mConfig = config;
     mLogger = Logger.newInstance(getClass().getSimpleName(), DEBUG ? Logger.LogLevel.VERBOSE : Logger.LogLevel.NONE);
-    mJobService = new JobService(context);
+    mBufferPool = new BufferPool(config.bufferPoolSize);
+    mHedger = new Hedger(config.hedgePercentile, config.hedgeDelayInMilliseconds);
+    mContentCache = new ContentCache(new File(context.getCacheDir(), CACHE_DIRECTORY), config.cacheSizeInBytes);
     mStorage = new Storage(context);
     mBus = new Bus(mStorage);
-    mDownloader = new Downloader(mStorage, mBus);
+    mDownloader = new Downloader(mStorage, mBus, mBufferPool, createClient(config), mHedger, mContentCache);
+    mDispatcher = new Dispatcher(mStorage, mDownloader);
+    mDownloader.setOnReleaseListener(mDispatcher::enqueueAll);
+    mJobService = new JobService(context, mDispatcher);
   }
 
   public void download(long id) throws IOException {
@@ -113,14 +201,73 @@ public class DownloadManager {
     }
     request.setId(mStorage.getNextTaskId());
     mStorage.enqueue(request);
-    mJobService.enqueue(request.getId());
+    if (mJobService.isNetworkConnected()) {
+      mDispatcher.enqueue(request.getId());
+    }
+    mJobService.schedule();
     return request.getId();
   }
 
+  /**
+   * Enqueues many requests at once: their ids are allocated as one block, their rows are written in one transaction and the job
+   * is scheduled once.
+   *
+   * @return the ids of the requests, in the same order.
+   */
+  public List<Long> enqueueAll(List<Request> requests) {
+    List<Request> pending = new ArrayList<>();
+    for (Request request : requests) {
+      if (!request.isEnqueued()) {
+        pending.add(request);
+      }
+    }
+    if (!pending.isEmpty()) {
+      long id = mStorage.getNextTaskIds(pending.size());
+      for (Request request : pending) {
+        request.setId(id++);
+      }
+      mStorage.enqueueAll(pending);
+      List<Long> pendingIds = new ArrayList<>();
+      for (Request request : pending) {
+        pendingIds.add(request.getId());
+      }
+      if (mJobService.isNetworkConnected()) {
+        mDispatcher.enqueueAll(pendingIds);
+      }
+      mJobService.schedule();
+    }
+    List<Long> ids = new ArrayList<>();
+    for (Request request : requests) {
+      ids.add(request.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * The pool of read buffers shared by all downloads. Its hit and miss counts help to size it.
+   */
+  public BufferPool getBufferPool() {
+    return mBufferPool;
+  }
+
   public Config getConfig() {
     return mConfig;
   }
 
+  /**
+   * The cache of downloaded files shared by all downloads. Its hit and miss counts tell how many downloads it saved.
+   */
+  public ContentCache getContentCache() {
+    return mContentCache;
+  }
+
+  /**
+   * Hedges the requests of all downloads. Its hedge and win counts tell how often slow responses were hedged.
+   */
+  public Hedger getHedger() {
+    return mHedger;
+  }
+
   public Logger getLogger() {
     return mLogger;
   }
@@ -144,8 +291,9 @@ public class DownloadManager {
   }
 
   public void pause(long id) {
-    mJobService.stop(id);
+    mDispatcher.cancel(id);
     mStorage.update(id, Task.State.IN_ACTIVE);
+    mDownloader.cancel(id);
     mBus.pausing(id);
   }
 
@@ -156,11 +304,21 @@ public class DownloadManager {
     }
   }
 
+  /**
+   * Opens a connection to the host of uri in the background, so DNS lookup, TCP and TLS handshakes are done before a burst of
+   * downloads from it. The connection waits in the pool until its keep alive expires.
+   */
+  public void prewarm(Uri uri) {
+    mDownloader.prewarm(uri);
+  }
+
   public void resume(long id) {
-    mJobService.stop(id);
     mStorage.update(id, Task.State.ACTIVE);
-    mJobService.enqueue(id);
     mBus.queueing(id);
+    if (mJobService.isNetworkConnected()) {
+      mDispatcher.enqueue(id);
+    }
+    mJobService.schedule();
   }
 
   public void resume(String tag) {
@@ -172,23 +330,75 @@ public class DownloadManager {
 
   public static class Config {
 
+    public final boolean adaptiveBufferSize;
+
     public final long backoffInMilliseconds;
 
     public final JobRequest.BackoffPolicy backoffPolicy;
 
+    public final long bufferPoolSize;
+
     public final int bufferSize;
 
+    public final long cacheSizeInBytes;
+
+    public final long checkpointIntervalInMilliseconds;
+
+    public final long checkpointStepInBytes;
+
+    public final OkHttpClient client;
+
+    public final long connectTimeoutInMilliseconds;
+
+    public final int connectionPoolSize;
+
     public final long executionWindowEndInMilliseconds;
 
     public final long executionWindowStartInMilliseconds;
 
+    public final long hedgeDelayInMilliseconds;
+
+    public final int hedgePercentile;
+
     @NonNull
     public final List<Interceptor> interceptors;
 
+    public final long keepAliveInMilliseconds;
+
+    public final int maxBufferSize;
+
+    public final int maxConnectionsPerHost;
+
+    public final int maxParallelDownloads;
+
+    public final int minBufferSize;
+
     public final boolean persisted;
 
+    public final int pipelineDepth;
+
+    public final boolean preallocate;
+
+    public final long progressIntervalInMilliseconds;
+
+    public final long progressStepInBytes;
+
+    public final List<Protocol> protocols;
+
+    public final long readTimeoutInMilliseconds;
+
+    public final int segmentCount;
+
+    public final long writeTimeoutInMilliseconds;
+
     private Config(long executionWindowStartInMilliseconds, long executionWindowEndInMilliseconds, long backoffInMilliseconds,
-        JobRequest.BackoffPolicy backoffPolicy, boolean persisted, int bufferSize, @NonNull List<Interceptor> interceptors) {
+        JobRequest.BackoffPolicy backoffPolicy, boolean persisted, int bufferSize, @NonNull List<Interceptor> interceptors,
+        int segmentCount, int maxParallelDownloads, int maxConnectionsPerHost, long progressIntervalInMilliseconds,
+        long progressStepInBytes, boolean adaptiveBufferSize, int minBufferSize, int maxBufferSize, long bufferPoolSize,
+        int pipelineDepth, boolean preallocate, long checkpointStepInBytes, long checkpointIntervalInMilliseconds,
+        OkHttpClient client, int connectionPoolSize, long keepAliveInMilliseconds, List<Protocol> protocols,
+        long connectTimeoutInMilliseconds, long readTimeoutInMilliseconds, long writeTimeoutInMilliseconds, int hedgePercentile,
+        long hedgeDelayInMilliseconds, long cacheSizeInBytes) {
       this.executionWindowStartInMilliseconds = executionWindowStartInMilliseconds;
       this.executionWindowEndInMilliseconds = executionWindowEndInMilliseconds;
       this.backoffInMilliseconds = backoffInMilliseconds;
@@ -196,24 +406,93 @@ public class DownloadManager {
       this.persisted = persisted;
       this.bufferSize = bufferSize;
       this.interceptors = interceptors;
+      this.segmentCount = segmentCount;
+      this.maxParallelDownloads = maxParallelDownloads;
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      this.progressIntervalInMilliseconds = progressIntervalInMilliseconds;
+      this.progressStepInBytes = progressStepInBytes;
+      this.adaptiveBufferSize = adaptiveBufferSize;
+      this.minBufferSize = minBufferSize;
+      this.maxBufferSize = maxBufferSize;
+      this.bufferPoolSize = bufferPoolSize;
+      this.pipelineDepth = pipelineDepth;
+      this.preallocate = preallocate;
+      this.checkpointStepInBytes = checkpointStepInBytes;
+      this.checkpointIntervalInMilliseconds = checkpointIntervalInMilliseconds;
+      this.client = client;
+      this.connectionPoolSize = connectionPoolSize;
+      this.keepAliveInMilliseconds = keepAliveInMilliseconds;
+      this.protocols = protocols;
+      this.connectTimeoutInMilliseconds = connectTimeoutInMilliseconds;
+      this.readTimeoutInMilliseconds = readTimeoutInMilliseconds;
+      this.writeTimeoutInMilliseconds = writeTimeoutInMilliseconds;
+      this.hedgePercentile = hedgePercentile;
+      this.hedgeDelayInMilliseconds = hedgeDelayInMilliseconds;
+      this.cacheSizeInBytes = cacheSizeInBytes;
     }
 
     public static class Builder {
 
       private final List<Interceptor> mInterceptors;
 
+      private Boolean mAdaptiveBufferSize;
+
       private long mBackoffInMilliseconds;
 
       private JobRequest.BackoffPolicy mBackoffPolicy;
 
+      private long mBufferPoolSize;
+
       private int mBufferSize;
 
+      private long mCacheSizeInBytes;
+
+      private long mCheckpointIntervalInMilliseconds;
+
+      private long mCheckpointStepInBytes;
+
+      private OkHttpClient mClient;
+
+      private long mConnectTimeoutInMilliseconds;
+
+      private int mConnectionPoolSize;
+
       private long mExecutionWindowEndInMilliseconds;
 
       private long mExecutionWindowStartInMilliseconds;
 
+      private long mHedgeDelayInMilliseconds;
+
+      private int mHedgePercentile;
+
+      private long mKeepAliveInMilliseconds;
+
+      private int mMaxBufferSize;
+
+      private int mMaxConnectionsPerHost;
+
+      private int mMaxParallelDownloads;
+
+      private int mMinBufferSize;
+
       private boolean mPersisted;
 
+      private int mPipelineDepth;
+
+      private boolean mPreallocate;
+
+      private long mProgressIntervalInMilliseconds;
+
+      private long mProgressStepInBytes;
+
+      private List<Protocol> mProtocols;
+
+      private long mReadTimeoutInMilliseconds;
+
+      private int mSegmentCount;
+
+      private long mWriteTimeoutInMilliseconds;
+
       public Builder() {
         mExecutionWindowStartInMilliseconds = DEFAULT_EXECUTION_WINDOW_START_IN_MILLISECONDS;
         mExecutionWindowEndInMilliseconds = DEFAULT_EXECUTION_WINDOW_END_IN_MILLISECONDS;
@@ -221,6 +500,26 @@ public class DownloadManager {
         mBackoffPolicy = DEFAULT_BACKOFF_POLICY;
         mPersisted = DEFAULT_PERSISTED;
         mBufferSize = DEFAULT_BUFFER_SIZE;
+        mSegmentCount = DEFAULT_SEGMENT_COUNT;
+        mMaxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
+        mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        mProgressIntervalInMilliseconds = DEFAULT_PROGRESS_INTERVAL_IN_MILLISECONDS;
+        mProgressStepInBytes = DEFAULT_PROGRESS_STEP_IN_BYTES;
+        mMinBufferSize = DEFAULT_MIN_BUFFER_SIZE;
+        mMaxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+        mBufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+        mPipelineDepth = DEFAULT_PIPELINE_DEPTH;
+        mPreallocate = DEFAULT_PREALLOCATE;
+        mCheckpointStepInBytes = DEFAULT_CHECKPOINT_STEP_IN_BYTES;
+        mCheckpointIntervalInMilliseconds = DEFAULT_CHECKPOINT_INTERVAL_IN_MILLISECONDS;
+        mConnectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+        mKeepAliveInMilliseconds = DEFAULT_KEEP_ALIVE_IN_MILLISECONDS;
+        mConnectTimeoutInMilliseconds = DEFAULT_CONNECT_TIMEOUT_IN_MILLISECONDS;
+        mReadTimeoutInMilliseconds = DEFAULT_READ_TIMEOUT_IN_MILLISECONDS;
+        mWriteTimeoutInMilliseconds = DEFAULT_WRITE_TIMEOUT_IN_MILLISECONDS;
+        mHedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+        mHedgeDelayInMilliseconds = DEFAULT_HEDGE_DELAY_IN_MILLISECONDS;
+        mCacheSizeInBytes = DEFAULT_CACHE_SIZE_IN_BYTES;
         mInterceptors = new ArrayList<>();
       }
 
@@ -231,7 +530,21 @@ public class DownloadManager {
 
       public Config build() {
         return new Config(mExecutionWindowStartInMilliseconds, mExecutionWindowEndInMilliseconds, mBackoffInMilliseconds, mBackoffPolicy,
-            mPersisted, mBufferSize, mInterceptors);
+            mPersisted, mBufferSize, mInterceptors, mSegmentCount, mMaxParallelDownloads, mMaxConnectionsPerHost,
+            mProgressIntervalInMilliseconds, mProgressStepInBytes,
+            mAdaptiveBufferSize != null ? mAdaptiveBufferSize : DEFAULT_ADAPTIVE_BUFFER_SIZE, mMinBufferSize, mMaxBufferSize,
+            mBufferPoolSize, mPipelineDepth, mPreallocate, mCheckpointStepInBytes, mCheckpointIntervalInMilliseconds, mClient,
+            mConnectionPoolSize, mKeepAliveInMilliseconds, mProtocols, mConnectTimeoutInMilliseconds, mReadTimeoutInMilliseconds,
+            mWriteTimeoutInMilliseconds, mHedgePercentile, mHedgeDelayInMilliseconds, mCacheSizeInBytes);
+      }
+
+      /**
+       * Lets each connection grow or shrink its read chunk between the min and max buffer sizes depending on how fast the link
+       * fills it. When disabled every read uses the buffer size.
+       */
+      public Builder setAdaptiveBufferSize(boolean adaptiveBufferSize) {
+        mAdaptiveBufferSize = adaptiveBufferSize;
+        return this;
       }
 
       public Builder setBackoffInMilliseconds(long backoffInMilliseconds) {
@@ -244,8 +557,76 @@ public class DownloadManager {
         return this;
       }
 
+      /**
+       * Maximum number of bytes kept by idle buffers between reads. 0 disables pooling.
+       */
+      public Builder setBufferPoolSize(long bufferPoolSize) {
+        mBufferPoolSize = Math.max(0, bufferPoolSize);
+        return this;
+      }
+
+      /**
+       * Size of each read chunk. Setting it turns adaptive buffer size off unless {@link #setAdaptiveBufferSize(boolean)} turns it
+       * on, in which case it is only the size a connection starts with.
+       */
       public Builder setBufferSize(int bufferSize) {
-        mBufferSize = bufferSize;
+        mBufferSize = Math.max(1, bufferSize);
+        if (mAdaptiveBufferSize == null) {
+          // an app which picked a fixed size keeps it
+          mAdaptiveBufferSize = false;
+        }
+        return this;
+      }
+
+      /**
+       * Maximum number of bytes kept by the cache of downloaded files, which are looked up by md5 so a later request of the same
+       * content is served without network. The least recently used files are evicted first. 0 disables the cache.
+       */
+      public Builder setCacheSizeInBytes(long cacheSizeInBytes) {
+        mCacheSizeInBytes = Math.max(0, cacheSizeInBytes);
+        return this;
+      }
+
+      /**
+       * Maximum time between two checkpoints of a connection. A checkpoint forces the temp file to disk and then stores how much
+       * of it was written, which is where a download resumes after a crash. 0 disables the time trigger.
+       */
+      public Builder setCheckpointIntervalInMilliseconds(long checkpointIntervalInMilliseconds) {
+        mCheckpointIntervalInMilliseconds = Math.max(0, checkpointIntervalInMilliseconds);
+        return this;
+      }
+
+      /**
+       * Number of bytes written by a connection between two checkpoints. 0 disables the byte trigger. With both triggers
+       * disabled the temp file is never forced to disk.
+       */
+      public Builder setCheckpointStepInBytes(long checkpointStepInBytes) {
+        mCheckpointStepInBytes = Math.max(0, checkpointStepInBytes);
+        return this;
+      }
+
+      /**
+       * Client to build the download client from, e.g. to share the connection pool and dispatcher of the app. The other http
+       * settings of this config are applied on top of it.
+       */
+      public Builder setClient(OkHttpClient client) {
+        mClient = client;
+        return this;
+      }
+
+      /**
+       * 0 keeps the timeout of the client.
+       */
+      public Builder setConnectTimeoutInMilliseconds(long connectTimeoutInMilliseconds) {
+        mConnectTimeoutInMilliseconds = Math.max(0, connectTimeoutInMilliseconds);
+        return this;
+      }
+
+      /**
+       * Maximum number of idle connections kept for reuse. 0 keeps the pool of the client.
+       */
+      public Builder setConnectionPoolSize(int connectionPoolSize) {
+        mConnectionPoolSize = Math.max(0, connectionPoolSize);
         return this;
       }
 
@@ -259,10 +640,125 @@ public class DownloadManager {
         return this;
       }
 
+      /**
+       * Delay before a request is hedged while too few response times are known for the hedge percentile.
+       */
+      public Builder setHedgeDelayInMilliseconds(long hedgeDelayInMilliseconds) {
+        mHedgeDelayInMilliseconds = Math.max(0, hedgeDelayInMilliseconds);
+        return this;
+      }
+
+      /**
+       * Sends a second identical request when the headers of a request take longer than this percentile of the recent response
+       * times, e.g. 95. The first response is used and the other request is canceled. 0 disables hedging.
+       */
+      public Builder setHedgePercentile(int hedgePercentile) {
+        mHedgePercentile = Math.max(0, Math.min(100, hedgePercentile));
+        return this;
+      }
+
+      /**
+       * Time an idle connection is kept in the pool. Only used with a connection pool size.
+       */
+      public Builder setKeepAliveInMilliseconds(long keepAliveInMilliseconds) {
+        mKeepAliveInMilliseconds = Math.max(0, keepAliveInMilliseconds);
+        return this;
+      }
+
+      public Builder setMaxBufferSize(int maxBufferSize) {
+        mMaxBufferSize = Math.max(1, maxBufferSize);
+        return this;
+      }
+
+      /**
+       * Maximum number of connections opened to one host by running downloads. A segmented download counts one per segment.
+       */
+      public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        return this;
+      }
+
+      public Builder setMaxParallelDownloads(int maxParallelDownloads) {
+        mMaxParallelDownloads = Math.max(1, maxParallelDownloads);
+        return this;
+      }
+
+      public Builder setMinBufferSize(int minBufferSize) {
+        mMinBufferSize = Math.max(1, minBufferSize);
+        return this;
+      }
+
       public Builder setPersisted(boolean persisted) {
         mPersisted = persisted;
         return this;
       }
+
+      /**
+       * Number of read chunks which may wait for the disk. Above 0 each connection reads and writes on separate threads, so a
+       * slow storage does not stall the socket. 0 reads and writes in lockstep.
+       */
+      public Builder setPipelineDepth(int pipelineDepth) {
+        mPipelineDepth = Math.max(0, pipelineDepth);
+        return this;
+      }
+
+      /**
+       * Sets the temp file to its full length as soon as the content length is known, and fails before the transfer if the
+       * disk has not enough space for it.
+       */
+      public Builder setPreallocate(boolean preallocate) {
+        mPreallocate = preallocate;
+        return this;
+      }
+
+      /**
+       * Minimum time between two DOWNLOADING events of a task. 0 disables the time throttle.
+       */
+      public Builder setProgressIntervalInMilliseconds(long progressIntervalInMilliseconds) {
+        mProgressIntervalInMilliseconds = progressIntervalInMilliseconds;
+        return this;
+      }
+
+      /**
+       * Minimum number of new bytes between two DOWNLOADING events of a task. 0 disables the byte throttle.
+       */
+      public Builder setProgressStepInBytes(long progressStepInBytes) {
+        mProgressStepInBytes = progressStepInBytes;
+        return this;
+      }
+
+      /**
+       * Protocols in order of preference, e.g. HTTP/2 first so segments to one host share a connection. It must contain
+       * HTTP/1.1. null keeps the protocols of the client.
+       */
+      public Builder setProtocols(List<Protocol> protocols) {
+        mProtocols = protocols;
+        return this;
+      }
+
+      /**
+       * 0 keeps the timeout of the client.
+       */
+      public Builder setReadTimeoutInMilliseconds(long readTimeoutInMilliseconds) {
+        mReadTimeoutInMilliseconds = Math.max(0, readTimeoutInMilliseconds);
+        return this;
+      }
+
+      /**
+       * Default number of parallel range connections per download. Only used when the server supports byte ranges.
+       */
+      public Builder setSegmentCount(int segmentCount) {
+        mSegmentCount = Math.max(1, segmentCount);
+        return this;
+      }
+
+      /**
+       * 0 keeps the timeout of the client.
+       */
+      public Builder setWriteTimeoutInMilliseconds(long writeTimeoutInMilliseconds) {
+        mWriteTimeoutInMilliseconds = Math.max(0, writeTimeoutInMilliseconds);
+        return this;
+      }
     }
   }
 }
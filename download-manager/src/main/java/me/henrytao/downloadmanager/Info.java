@@ -38,7 +38,8 @@ public class Info extends Task {
 
   protected Info(Task task, long bytesRead, Status status) {
     super(task.getId(), task.getTag(), task.getUri(), task.getTitle(), task.getDescription(), task.getDestUri(), task.getTempUri(),
-        task.getMaxRetry(), task.getRetryCount(), task.getState(), task.getContentLength(), task.getMd5());
+        task.getMaxRetry(), task.getRetryCount(), task.getState(), task.getContentLength(), task.getMd5(), task.getSegmentCount(),
+        task.getMd5State(), task.getValidator(), task.getMirrors(), task.getChecksum(), task.isRefresh());
     this.bytesRead = bytesRead;
     this.status = status;
   }
@@ -74,8 +75,12 @@ public class Info extends Task {
     return result;
   }
 
+  /**
+   * @param force true to read the length of the file instead, which is wrong for a preallocated temp file.
+   * @return the bytes read the event was created with, which come from the stored segments when the task has any.
+   */
   public long getBytesRead(boolean force) {
-    return force || bytesRead == 0 ? super.getBytesRead() : bytesRead;
+    return force ? super.getBytesRead() : bytesRead;
   }
 
   public Status getStatus() {
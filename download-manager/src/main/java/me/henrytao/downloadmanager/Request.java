@@ -19,6 +19,9 @@ package me.henrytao.downloadmanager;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import me.henrytao.downloadmanager.internal.Precondition;
@@ -31,12 +34,20 @@ public class Request {
 
   private static final int DEFAULT_RETRY = 30;
 
+  private final String mChecksum;
+
   private final String mDescription;
 
   private final Uri mDestUri;
 
+  private final List<Uri> mMirrors;
+
+  private final boolean mRefresh;
+
   private final int mRetry;
 
+  private final int mSegmentCount;
+
   private final String mTag;
 
   private final Uri mTempUri;
@@ -47,7 +58,8 @@ public class Request {
 
   private long mId;
 
-  private Request(Uri uri, String tag, String title, String description, Uri destUri, Uri tempUri, int retry) {
+  private Request(Uri uri, String tag, String title, String description, Uri destUri, Uri tempUri, int retry, int segmentCount,
+      List<Uri> mirrors, String checksum, boolean refresh) {
     mId = -1;
     mTag = tag;
     mUri = uri;
@@ -56,6 +68,10 @@ public class Request {
     mDestUri = destUri;
     mTempUri = tempUri;
     mRetry = retry;
+    mSegmentCount = segmentCount;
+    mMirrors = mirrors;
+    mChecksum = checksum;
+    mRefresh = refresh;
   }
 
   @Override
@@ -67,9 +83,15 @@ public class Request {
       return false;
     }
     Request request = (Request) o;
+    if (mRefresh != request.mRefresh) {
+      return false;
+    }
     if (mRetry != request.mRetry) {
       return false;
     }
+    if (mSegmentCount != request.mSegmentCount) {
+      return false;
+    }
     if (mId != request.mId) {
       return false;
     }
@@ -88,6 +110,12 @@ public class Request {
     if (mTitle != null ? !mTitle.equals(request.mTitle) : request.mTitle != null) {
       return false;
     }
+    if (!mMirrors.equals(request.mMirrors)) {
+      return false;
+    }
+    if (mChecksum != null ? !mChecksum.equals(request.mChecksum) : request.mChecksum != null) {
+      return false;
+    }
     return mUri.equals(request.mUri);
   }
 
@@ -96,10 +124,14 @@ public class Request {
     int result = mDescription != null ? mDescription.hashCode() : 0;
     result = 31 * result + mDestUri.hashCode();
     result = 31 * result + mRetry;
+    result = 31 * result + mSegmentCount;
     result = 31 * result + mTag.hashCode();
     result = 31 * result + mTempUri.hashCode();
     result = 31 * result + (mTitle != null ? mTitle.hashCode() : 0);
     result = 31 * result + mUri.hashCode();
+    result = 31 * result + mMirrors.hashCode();
+    result = 31 * result + (mChecksum != null ? mChecksum.hashCode() : 0);
+    result = 31 * result + (mRefresh ? 1 : 0);
     result = 31 * result + (int) (mId ^ (mId >>> 32));
     return result;
   }
@@ -108,6 +140,13 @@ public class Request {
     return DownloadManager.getInstance().enqueue(this);
   }
 
+  /**
+   * Expected md5 of the file, given by the app. It takes precedence over the ETag of the server.
+   */
+  public String getChecksum() {
+    return mChecksum;
+  }
+
   public String getDescription() {
     return mDescription;
   }
@@ -120,6 +159,13 @@ public class Request {
     return mId;
   }
 
+  /**
+   * Other uris serving the same file. Segments are spread across them and the uri of this request.
+   */
+  public List<Uri> getMirrors() {
+    return mMirrors;
+  }
+
   void setId(long id) {
     mId = id;
   }
@@ -128,6 +174,10 @@ public class Request {
     return mRetry;
   }
 
+  public int getSegmentCount() {
+    return mSegmentCount;
+  }
+
   public String getTag() {
     return mTag;
   }
@@ -148,10 +198,18 @@ public class Request {
     return mId >= 0;
   }
 
+  public boolean isRefresh() {
+    return mRefresh;
+  }
+
   public static final class Builder {
 
+    private final List<Uri> mMirrors;
+
     private final Uri mUri;
 
+    private String mChecksum;
+
     private String mDescription;
 
     private String mDestFilename;
@@ -160,8 +218,12 @@ public class Request {
 
     private Uri mDestUri;
 
+    private boolean mRefresh;
+
     private int mRetry;
 
+    private int mSegmentCount;
+
     private String mTag;
 
     private String mTempFilename;
@@ -175,6 +237,15 @@ public class Request {
     public Builder(@NonNull Uri uri) {
       mUri = uri;
       mRetry = DEFAULT_RETRY;
+      mMirrors = new ArrayList<>();
+    }
+
+    /**
+     * Adds a uri serving the same file. A mirror which fails or is much slower than the others is dropped from the download.
+     */
+    public Builder addMirror(@NonNull Uri mirror) {
+      mMirrors.add(mirror);
+      return this;
     }
 
     public Request build() {
@@ -187,10 +258,23 @@ public class Request {
           mDescription,
           Precondition.checkNotNull(mDestUri, Uri.withAppendedPath(Precondition.checkNotNull(mDestPath), mDestFilename)),
           Precondition.checkNotNull(mTempUri, Uri.withAppendedPath(Precondition.checkNotNull(mTempPath), mTempFilename)),
-          mRetry
+          mRetry,
+          mSegmentCount,
+          Collections.unmodifiableList(new ArrayList<>(mMirrors)),
+          mChecksum,
+          mRefresh
       );
     }
 
+    /**
+     * Expected md5 of the file. The download is validated against it, and a file with the same md5 in the content cache is used
+     * instead of the network.
+     */
+    public Builder setChecksum(String checksum) {
+      mChecksum = checksum;
+      return this;
+    }
+
     public Builder setDescription(String description) {
       mDescription = description;
       return this;
@@ -211,11 +295,28 @@ public class Request {
       return this;
     }
 
+    /**
+     * Asks the server whether the file of the last successful download of the same uri is still current. If it is, the task
+     * succeeds with that file and no body is downloaded.
+     */
+    public Builder setRefresh(boolean refresh) {
+      mRefresh = refresh;
+      return this;
+    }
+
     public Builder setRetry(int count) {
       mRetry = count;
       return this;
     }
 
+    /**
+     * Number of connections used to fetch this request in parallel. 0 means {@link DownloadManager.Config#segmentCount}.
+     */
+    public Builder setSegmentCount(int segmentCount) {
+      mSegmentCount = segmentCount;
+      return this;
+    }
+
     public Builder setTag(String tag) {
       mTag = tag;
       return this;
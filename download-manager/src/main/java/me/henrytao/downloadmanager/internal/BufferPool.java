@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Byte arrays shared by the copy loops and the hashing code of every download. Sizes are rounded up to a power of two so
+ * arrays can be reused across requests of close sizes. Released arrays are kept only while the idle ones fit in the max size.
+ */
+public final class BufferPool {
+
+  private static int roundUp(int size) {
+    int capacity = Integer.highestOneBit(Math.max(1, size));
+    return capacity < size ? capacity << 1 : capacity;
+  }
+
+  private final Map<Integer, Deque<byte[]>> mBuffers = new HashMap<>();
+
+  private final long mMaxSize;
+
+  private long mHitCount;
+
+  private long mMissCount;
+
+  private long mSize;
+
+  public BufferPool(long maxSize) {
+    mMaxSize = maxSize;
+  }
+
+  public synchronized long getHitCount() {
+    return mHitCount;
+  }
+
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  public synchronized long getMissCount() {
+    return mMissCount;
+  }
+
+  /**
+   * @return total length of the idle arrays held by the pool.
+   */
+  public synchronized long getSize() {
+    return mSize;
+  }
+
+  /**
+   * @return an array of at least size bytes, which should be given back with {@link #release(byte[])}.
+   */
+  synchronized byte[] acquire(int size) {
+    int capacity = roundUp(size);
+    Deque<byte[]> buffers = mBuffers.get(capacity);
+    byte[] buffer = buffers != null ? buffers.poll() : null;
+    if (buffer == null) {
+      mMissCount += 1;
+      return new byte[capacity];
+    }
+    mHitCount += 1;
+    mSize -= buffer.length;
+    return buffer;
+  }
+
+  synchronized void release(byte[] buffer) {
+    if (buffer == null || buffer.length != roundUp(buffer.length) || mSize + buffer.length > mMaxSize) {
+      return;
+    }
+    Deque<byte[]> buffers = mBuffers.get(buffer.length);
+    if (buffers == null) {
+      buffers = new ArrayDeque<>();
+      mBuffers.put(buffer.length, buffers);
+    }
+    buffers.push(buffer);
+    mSize += buffer.length;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+/**
+ * Picks the chunk size of one connection from how long the read calls took to fill the previous chunk. A chunk filled well
+ * within the target time doubles, a slower one shrinks to what the link delivers in that time. Equal bounds give a fixed size.
+ */
+class BufferSizer {
+
+  static final long TARGET_FILL_TIME_IN_NANOSECONDS = 50 * 1000000L;
+
+  private final int mMaxSize;
+
+  private final int mMinSize;
+
+  private int mSize;
+
+  BufferSizer(int size, int minSize, int maxSize) {
+    mMinSize = Math.max(1, Math.min(minSize, maxSize));
+    mMaxSize = Math.max(mMinSize, maxSize);
+    mSize = Math.max(mMinSize, Math.min(size, mMaxSize));
+  }
+
+  int get() {
+    return mSize;
+  }
+
+  /**
+   * @param count number of bytes read into the last chunk.
+   * @param nanoseconds time spent in read calls to fill it.
+   */
+  void onChunk(int count, long nanoseconds) {
+    if (count < mSize) {
+      // cut short by the end of the stream or of the segment, it says nothing about the link
+      return;
+    }
+    if (nanoseconds <= TARGET_FILL_TIME_IN_NANOSECONDS / 2) {
+      mSize = (int) Math.min(mMaxSize, 2L * mSize);
+    } else if (nanoseconds > TARGET_FILL_TIME_IN_NANOSECONDS) {
+      long bytesPerTarget = count * TARGET_FILL_TIME_IN_NANOSECONDS / nanoseconds;
+      mSize = (int) Math.max(mMinSize, bytesPerTarget);
+    }
+  }
+}
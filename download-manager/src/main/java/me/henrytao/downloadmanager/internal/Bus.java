@@ -43,7 +43,7 @@ public class Bus {
   }
 
   public void downloaded(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.DOWNLOADED));
+    onNext(id, create(mStorage.find(id), Info.Status.DOWNLOADED));
   }
 
   public void downloading(long id, long bytesRead) {
@@ -51,7 +51,7 @@ public class Bus {
   }
 
   public void failed(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.FAILED));
+    onNext(id, create(mStorage.find(id), Info.Status.FAILED));
   }
 
   public Observable<Info> observe(long id) {
@@ -64,23 +64,24 @@ public class Bus {
           }
           switch (task.getState()) {
             case ACTIVE:
-              if (task.getBytesRead() == 0) {
-                SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.QUEUEING));
+              long bytesRead = mStorage.getBytesRead(task);
+              if (bytesRead == 0) {
+                SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, bytesRead, Info.Status.QUEUEING));
               } else {
-                SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.DOWNLOADING));
+                SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, bytesRead, Info.Status.DOWNLOADING));
               }
               break;
             case IN_ACTIVE:
-              SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.PAUSING));
+              SubscriptionUtils.onNextAndComplete(subscriber, create(task, Info.Status.PAUSING));
               break;
             case OUT_OF_RETRY_COUNT:
-              SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.FAILED));
+              SubscriptionUtils.onNextAndComplete(subscriber, create(task, Info.Status.FAILED));
               break;
             case SUCCESS:
-              SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.SUCCEED));
+              SubscriptionUtils.onNextAndComplete(subscriber, create(task, Info.Status.SUCCEED));
               break;
             default:
-              SubscriptionUtils.onNextAndComplete(subscriber, Info.create(task, 0, Info.Status.FAILED));
+              SubscriptionUtils.onNextAndComplete(subscriber, create(task, Info.Status.FAILED));
               break;
           }
         }),
@@ -89,19 +90,27 @@ public class Bus {
   }
 
   public void pausing(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.PAUSING));
+    onNext(id, create(mStorage.find(id), Info.Status.PAUSING));
   }
 
   public void queueing(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.QUEUEING));
+    onNext(id, create(mStorage.find(id), Info.Status.QUEUEING));
   }
 
   public void succeed(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.SUCCEED));
+    onNext(id, create(mStorage.find(id), Info.Status.SUCCEED));
   }
 
   public void validating(long id) {
-    onNext(id, Info.create(mStorage.find(id), 0, Info.Status.VALIDATING));
+    onNext(id, create(mStorage.find(id), Info.Status.VALIDATING));
+  }
+
+  /**
+   * Creates the info of an event which does not carry the bytes read. The stored segments know how far a task is, the length of its
+   * temp file does not once the file was preallocated.
+   */
+  private Info create(Task task, Info.Status status) {
+    return Info.create(task, mStorage.getBytesRead(task), status);
   }
 
   @NonNull
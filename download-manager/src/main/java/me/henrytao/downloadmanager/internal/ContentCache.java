@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Copies of downloaded files named by their md5, so content which was already downloaded under another uri or destination is
+ * served from disk. Files are evicted in least recently used order once their total length exceeds the max size.
+ */
+public final class ContentCache {
+
+  private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * @return the md5 as a lower case hex string without quotes, or null if it is not an md5, e.g. an opaque ETag.
+   */
+  static String getKey(String md5) {
+    if (md5 == null) {
+      return null;
+    }
+    String key = md5.replaceAll("\"", "").toLowerCase(Locale.US);
+    return MD5.matcher(key).matches() ? key : null;
+  }
+
+  private final File mDirectory;
+
+  private final Map<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final long mMaxSize;
+
+  private long mHitCount;
+
+  private boolean mLoaded;
+
+  private long mMissCount;
+
+  private long mSize;
+
+  public ContentCache(File directory, long maxSize) {
+    mDirectory = directory;
+    mMaxSize = maxSize;
+  }
+
+  public synchronized long getHitCount() {
+    return mHitCount;
+  }
+
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  public synchronized long getMissCount() {
+    return mMissCount;
+  }
+
+  /**
+   * @return total length of the cached files.
+   */
+  public synchronized long getSize() {
+    load();
+    return mSize;
+  }
+
+  /**
+   * @return the cached file of the given md5, which must only be read, or null on a miss.
+   */
+  synchronized File get(String md5) {
+    String key = getKey(md5);
+    if (!isEnabled() || key == null) {
+      return null;
+    }
+    load();
+    Long length = mEntries.get(key);
+    File file = new File(mDirectory, key);
+    if (length == null || file.length() != length) {
+      if (length != null) {
+        // changed or deleted behind our back
+        remove(key);
+      }
+      mMissCount += 1;
+      return null;
+    }
+    mHitCount += 1;
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  boolean isEnabled() {
+    return mMaxSize > 0;
+  }
+
+  /**
+   * Keeps a copy of a file whose content was verified against the given md5.
+   */
+  void put(String md5, File file) throws IOException {
+    String key = getKey(md5);
+    if (!isEnabled() || key == null || file.length() > mMaxSize) {
+      return;
+    }
+    synchronized (this) {
+      load();
+      if (mEntries.containsKey(key)) {
+        return;
+      }
+    }
+    // copy outside of the lock, the name keeps concurrent puts of the same content apart
+    File temp = new File(mDirectory, key + "." + System.nanoTime() + TEMP_SUFFIX);
+    FileUtils.copy(file, temp);
+    long length = temp.length();
+    synchronized (this) {
+      if (mEntries.containsKey(key) || !temp.renameTo(new File(mDirectory, key))) {
+        FileUtils.delete(temp);
+        return;
+      }
+      mEntries.put(key, length);
+      mSize += length;
+      trim();
+    }
+  }
+
+  private void load() {
+    if (mLoaded) {
+      return;
+    }
+    mLoaded = true;
+    //noinspection ResultOfMethodCallIgnored
+    mDirectory.mkdirs();
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, (left, right) -> Long.compare(left.lastModified(), right.lastModified()));
+    for (File file : files) {
+      if (file.getName().endsWith(TEMP_SUFFIX)) {
+        // left by a process which died while copying
+        FileUtils.delete(file);
+      } else if (file.getName().equals(getKey(file.getName()))) {
+        mEntries.put(file.getName(), file.length());
+        mSize += file.length();
+      }
+    }
+    trim();
+  }
+
+  private void remove(String key) {
+    Long length = mEntries.remove(key);
+    if (length != null) {
+      mSize -= length;
+      FileUtils.delete(new File(mDirectory, key));
+    }
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+    while (mSize > mMaxSize && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      iterator.remove();
+      mSize -= entry.getValue();
+      FileUtils.delete(new File(mDirectory, entry.getKey()));
+    }
+  }
+}
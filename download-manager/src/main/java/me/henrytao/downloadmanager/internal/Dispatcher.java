@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.henrytao.downloadmanager.DownloadManager;
+
+/**
+ * Runs tasks in process with a global parallelism limit and a per host connection limit. Ready tasks wait in a FIFO queue and
+ * the first one which fits is started as soon as a running task frees its slot.
+ */
+public class Dispatcher {
+
+  private static DownloadManager.Config getConfig() {
+    return DownloadManager.getInstance().getConfig();
+  }
+
+  private static Logger log() {
+    return DownloadManager.getInstance().getLogger();
+  }
+
+  private final Map<String, Integer> mConnectionsPerHost = new HashMap<>();
+
+  private final Downloader mDownloader;
+
+  private final ExecutorService mExecutor;
+
+  private final Set<Long> mFailed = new HashSet<>();
+
+  private final Set<Long> mPending = new HashSet<>();
+
+  private final Deque<Long> mReadyQueue = new ArrayDeque<>();
+
+  private final Map<Long, Integer> mRunning = new HashMap<>();
+
+  private final Storage mStorage;
+
+  public Dispatcher(Storage storage, Downloader downloader) {
+    mStorage = storage;
+    mDownloader = downloader;
+    mExecutor = Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Blocks until there is nothing left to run.
+   *
+   * @return false if a task failed and is still active, so the caller should try again later.
+   */
+  public synchronized boolean awaitIdle() throws InterruptedException {
+    while (!mRunning.isEmpty() || !mReadyQueue.isEmpty()) {
+      wait();
+    }
+    boolean succeed = true;
+    for (long id : mFailed) {
+      Task task = mStorage.find(id);
+      succeed = succeed && (task == null || !task.isActive());
+    }
+    mFailed.clear();
+    return succeed;
+  }
+
+  public synchronized void cancel(long id) {
+    mReadyQueue.remove(id);
+    mPending.remove(id);
+    notifyAll();
+  }
+
+  public synchronized void enqueue(long id) {
+    add(id);
+    promote();
+  }
+
+  /**
+   * Enqueues all ids, then starts what fits in a single pass.
+   */
+  public synchronized void enqueueAll(List<Long> ids) {
+    for (long id : ids) {
+      add(id);
+    }
+    promote();
+  }
+
+  /**
+   * Enqueues every active task which is not running, e.g. after the process was restarted. A running task is not marked to run
+   * again, if it fails the job retries it with its backoff.
+   */
+  public synchronized void wake() {
+    for (Task task : mStorage.findAll(Task.State.ACTIVE)) {
+      if (!mRunning.containsKey(task.getId())) {
+        add(task.getId());
+      }
+    }
+    promote();
+  }
+
+  private void add(long id) {
+    if (mRunning.containsKey(id)) {
+      // e.g. resumed while the paused run is still stopping, run it again once that finishes
+      mPending.add(id);
+    } else if (!mReadyQueue.contains(id)) {
+      mReadyQueue.add(id);
+    }
+  }
+
+  private synchronized void finish(long id, String host, boolean failed) {
+    int connections = mRunning.remove(id);
+    int remaining = mConnectionsPerHost.get(host) - connections;
+    if (remaining > 0) {
+      mConnectionsPerHost.put(host, remaining);
+    } else {
+      mConnectionsPerHost.remove(host);
+    }
+    if (failed) {
+      mFailed.add(id);
+    }
+    if (mPending.remove(id)) {
+      mReadyQueue.add(id);
+    }
+    promote();
+    notifyAll();
+  }
+
+  private int getConnections(Task task) {
+    int segmentCount = task.getSegmentCount() > 0 ? task.getSegmentCount() : getConfig().segmentCount;
+    // a task always fits an idle host, even if it would open more connections than allowed
+    return Math.max(1, Math.min(segmentCount, getConfig().maxConnectionsPerHost));
+  }
+
+  private String getHost(Task task) {
+    String host = task.getUri().getHost();
+    return host != null ? host : "";
+  }
+
+  private synchronized void promote() {
+    Iterator<Long> iterator = mReadyQueue.iterator();
+    while (iterator.hasNext() && mRunning.size() < getConfig().maxParallelDownloads) {
+      long id = iterator.next();
+      Task task = mStorage.find(id);
+      if (task == null || !task.isActive()) {
+        iterator.remove();
+        continue;
+      }
+      String host = getHost(task);
+      int connections = getConnections(task);
+      int hostConnections = mConnectionsPerHost.containsKey(host) ? mConnectionsPerHost.get(host) : 0;
+      if (hostConnections + connections > getConfig().maxConnectionsPerHost) {
+        continue;
+      }
+      iterator.remove();
+      mRunning.put(id, connections);
+      mConnectionsPerHost.put(host, hostConnections + connections);
+      mExecutor.execute(() -> run(task, host));
+    }
+  }
+
+  private void run(Task task, String host) {
+    boolean failed = false;
+    try {
+      mDownloader.download(mStorage.find(task.getId()));
+    } catch (Exception exception) {
+      failed = true;
+      log().e(exception, "Could not download task %d", task.getId());
+    } finally {
+      finish(task.getId(), host, failed);
+    }
+  }
+}
@@ -18,20 +18,39 @@ package me.henrytao.downloadmanager.internal;
 
 import android.net.Uri;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.henrytao.downloadmanager.DownloadManager;
 import me.henrytao.downloadmanager.Info;
 import me.henrytao.downloadmanager.Interceptor;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 /**
  * Created by henrytao on 12/13/16.
@@ -39,25 +58,248 @@ import okhttp3.Response;
 
 public class Downloader {
 
+  private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final int MIN_SPLIT_SIZE = 256 * 1024;
+
+  private static final long PIPELINE_POLL_IN_MILLISECONDS = 100;
+
+  private static final int NOT_MODIFIED = 304;
+
+  private static final int OK = 200;
+
+  private static final int PARTIAL_CONTENT = 206;
+
   private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
 
+  private static final String WEAK_ETAG_PREFIX = "W/";
+
   private static DownloadManager.Config getConfig() {
     return DownloadManager.getInstance().getConfig();
   }
 
+  /**
+   * The checksum given by the app, otherwise the md5 sent by the server.
+   */
+  private static String getExpectedMd5(Task task) {
+    return task.getChecksum() != null ? task.getChecksum() : task.getMd5();
+  }
+
+  /**
+   * If-Range only accepts a strong ETag or a date, a weak ETag falls back to Last-Modified.
+   */
+  private static String getValidator(Response response) {
+    String etag = response.header("ETag");
+    if (etag != null && !etag.startsWith(WEAK_ETAG_PREFIX)) {
+      return etag;
+    }
+    return response.header("Last-Modified");
+  }
+
+  private static Logger log() {
+    return DownloadManager.getInstance().getLogger();
+  }
+
+  private final BufferPool mBufferPool;
+
   private final Bus mBus;
 
+  private final ExecutorService mCacheExecutor;
+
+  private final Map<Long, AtomicBoolean> mCancelSignals = new ConcurrentHashMap<>();
+
   private final OkHttpClient mClient;
 
+  private final ContentCache mContentCache;
+
+  private final Hedger mHedger;
+
+  private volatile OnReleaseListener mOnReleaseListener;
+
+  private final ExecutorService mSegmentExecutor;
+
   private final Storage mStorage;
 
-  public Downloader(Storage storage, Bus bus) {
+  private final Map<String, Transfer> mTransfers = new ConcurrentHashMap<>();
+
+  public Downloader(Storage storage, Bus bus, BufferPool bufferPool, OkHttpClient client, Hedger hedger, ContentCache contentCache) {
     mStorage = storage;
     mBus = bus;
-    mClient = new OkHttpClient.Builder().build();
+    mBufferPool = bufferPool;
+    mClient = client;
+    mHedger = hedger;
+    mContentCache = contentCache;
+    mSegmentExecutor = Executors.newCachedThreadPool();
+    mCacheExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Stops the running download of a task. The copy loop polls this flag instead of the task state in {@link Storage}.
+   */
+  public void cancel(long id) {
+    AtomicBoolean canceled = mCancelSignals.get(id);
+    if (canceled != null) {
+      canceled.set(true);
+    }
+    for (Transfer transfer : mTransfers.values()) {
+      transfer.followers.remove(id);
+    }
   }
 
+  /**
+   * Downloads the task, unless another task already downloads the same file. In that case the task only waits on that transfer
+   * and this returns right away, the other task finishes it without blocking a thread for it.
+   */
   public void download(Task task) throws IOException {
+    if (task == null) {
+      return;
+    }
+    Task current = mStorage.find(task.getId());
+    Transfer leading = current != null && current.isActive() ? join(current) : null;
+    if (leading != null && leading.leaderId != task.getId()) {
+      mBus.queueing(task.getId());
+      return;
+    }
+    AtomicBoolean canceled = new AtomicBoolean();
+    mCancelSignals.put(task.getId(), canceled);
+    try {
+      // read the state again after registering, the task may have been paused in between
+      download(mStorage.find(task.getId()), canceled);
+    } catch (ChangedException exception) {
+      // the stored ranges belong to an older version of the file, start again from offset 0 right away
+      log().d("Restart task %d | %s", task.getId(), exception.getMessage());
+      mStorage.removeSegments(task.getId());
+      mStorage.update(task.getId(), (Md5) null);
+      FileUtils.delete(task.getTempFile());
+      download(mStorage.find(task.getId()), canceled);
+    } finally {
+      mCancelSignals.remove(task.getId());
+      if (leading != null) {
+        release(task, leading);
+      }
+    }
+  }
+
+  /**
+   * Sends a HEAD request to uri without waiting for it, so its connection is ready in the pool for the next downloads.
+   */
+  public void prewarm(Uri uri) {
+    Request request = new Request.Builder()
+        .url(uri.toString())
+        .head()
+        .build();
+    mClient.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        log().e(e, "Could not prewarm %s", uri);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        response.close();
+      }
+    });
+  }
+
+  public void setOnReleaseListener(OnReleaseListener listener) {
+    mOnReleaseListener = listener;
+  }
+
+  /**
+   * Keeps a copy of the file of a succeeded task in the background, so caching never delays the completion of a task.
+   */
+  private void cache(String md5, File file) {
+    if (!mContentCache.isEnabled() || ContentCache.getKey(md5) == null) {
+      return;
+    }
+    mCacheExecutor.execute(() -> {
+      try {
+        mContentCache.put(md5, file);
+      } catch (IOException exception) {
+        log().e(exception, "Could not cache %s", file);
+      }
+    });
+  }
+
+  /**
+   * Reads and writes a segment in lockstep on the calling thread.
+   */
+  private void copySegment(Task task, Segment segment, BufferedSource source, SegmentWriter writer, AtomicBoolean aborted,
+      AtomicBoolean canceled) throws IOException {
+    BufferSizer sizer = createBufferSizer();
+    byte[] data = mBufferPool.acquire(sizer.get());
+    try {
+      long position = segment.getPosition();
+      int length;
+      // the end may move closer while reading, when another connection takes over the rest of the segment
+      while (!aborted.get() && !canceled.get() && (length = segment.reserve(position, sizer.get())) > 0) {
+        if (data.length < sizer.get() || data.length >= 2 * sizer.get()) {
+          // the pool rounds sizes up, so only a change of power of two needs another array
+          mBufferPool.release(data);
+          data = mBufferPool.acquire(sizer.get());
+        }
+        int count = readChunk(task, segment, source, data, length, sizer);
+        if (count == -1) {
+          break;
+        }
+        writer.write(data, count);
+        position += count;
+      }
+    } finally {
+      mBufferPool.release(data);
+    }
+  }
+
+  /**
+   * Validates the temp file, then moves it to its destination. A mismatch drops the temp file so the next run starts over.
+   */
+  private void complete(Task task, Md5 md5) throws IOException {
+    mBus.downloaded(task.getId());
+    // get latest task info
+    task = mStorage.find(task.getId());
+    mBus.validating(task.getId());
+    if (matchMd5(task, md5)) {
+      File renamedOutputFile = FileUtils.move(task.getTempFile(), task.getDestFile(), true);
+      mStorage.update(task.getId(), Uri.fromFile(renamedOutputFile));
+      mStorage.removeSegments(task.getId());
+      succeed(task.getId());
+      cache(getExpectedMd5(task), renamedOutputFile);
+    } else {
+      mStorage.update(task.getId(), Task.State.ACTIVE);
+      mStorage.update(task.getId(), (Md5) null);
+      mStorage.removeSegments(task.getId());
+      FileUtils.delete(task.getTempFile());
+      mBus.failed(task.getId());
+      throw new IllegalStateException(String.format(Locale.US, "Mismatch md5 for task %d", task.getId()));
+    }
+  }
+
+  private BufferSizer createBufferSizer() {
+    DownloadManager.Config config = getConfig();
+    if (!config.adaptiveBufferSize) {
+      return new BufferSizer(config.bufferSize, config.bufferSize, config.bufferSize);
+    }
+    return new BufferSizer(config.bufferSize, config.minBufferSize, config.maxBufferSize);
+  }
+
+  private Mirrors<Uri> createMirrors(Task task) {
+    return new Mirrors<>(task.getUri(), task.getMirrors());
+  }
+
+  private Progress createProgress(long bytesRead) {
+    return new Progress(bytesRead, getConfig().progressIntervalInMilliseconds, getConfig().progressStepInBytes);
+  }
+
+  private List<Segment> createSegments(Task task, ResponseInfo response) {
+    int segmentCount = task.getSegmentCount() > 0 ? task.getSegmentCount() : getConfig().segmentCount;
+    if (segmentCount <= 1 || response.bytesRead != 0 || response.response.code() != PARTIAL_CONTENT
+        || response.response.body().contentLength() <= 0) {
+      return new ArrayList<>();
+    }
+    return Segment.split(response.contentLength, segmentCount, MIN_SEGMENT_SIZE);
+  }
+
+  private void download(Task task, AtomicBoolean canceled) throws IOException {
     if (task == null || !task.isActive()) {
       // return without exception to finish job
       return;
@@ -66,8 +308,7 @@ public class Downloader {
     mBus.queueing(task.getId());
 
     ResponseInfo response = null;
-    InputStream input = null;
-    OutputStream output = null;
+    Md5 md5 = null;
     try {
       File interceptedFile = null;
       Info info = Info.create(mStorage.find(task.getId()), 0, Info.Status.QUEUEING);
@@ -81,109 +322,686 @@ public class Downloader {
         File file = task.getTempFile();
         FileUtils.delete(file);
         FileUtils.move(interceptedFile, file, true);
-        mStorage.update(task.getId(), file.length(), FileUtils.getMd5(file));
+        mStorage.removeSegments(task.getId());
+        mStorage.update(task.getId(), file.length(), FileUtils.getMd5(file, mBufferPool), null);
         mBus.downloading(task.getId(), file.length());
+      } else if (restoreFromCache(task, getExpectedMd5(task))) {
+        // already downloaded under another uri or destination
+        return;
       } else {
-        response = initResponse(task);
-        if (response.response != null) {
-          long bytesRead = response.bytesRead;
-          if (bytesRead == 0) {
-            mStorage.update(task.getId(), response.contentLength, response.md5);
-          }
-          mBus.downloading(task.getId(), bytesRead);
-
-          input = response.response.body().byteStream();
-          output = new FileOutputStream(response.file, bytesRead != 0);
-          byte data[] = new byte[getConfig().bufferSize];
-          int count;
-          if (!isCanceled(task.getId())) {
-            while ((count = input.read(data)) != -1) {
-              bytesRead += count;
-              output.write(data, 0, count);
+        List<Segment> segments = findSegments(task);
+        if (segments.size() > 1) {
+          // resume only the missing ranges of a previous segmented download
+          Progress progress = createProgress(Segment.getBytesRead(segments));
+          mBus.downloading(task.getId(), progress.get());
+          md5 = restoreMd5(task, Segment.getContiguousLength(segments));
+          downloadSegments(task, null, segments, createMirrors(task), md5, progress, true, canceled);
+        } else {
+          // a lone stored segment tracks the written length of a preallocated file, whose length is already the full size
+          long bytesRead = segments.isEmpty() ? task.getBytesRead() : segments.get(0).getPosition();
+          md5 = restoreMd5(task, bytesRead);
+          Task previous = task.isRefresh() && bytesRead == 0 ? findPrevious(task) : null;
+          response = initResponse(task, md5, bytesRead, previous);
+          if (response.notModified) {
+            // nothing was written, there is no md5 state to keep
+            md5 = null;
+            reuse(task, previous);
+            return;
+          } else if (response.response != null) {
+            bytesRead = response.bytesRead;
+            if (bytesRead == 0) {
+              mStorage.update(task.getId(), response.contentLength, response.md5, response.validator);
+              for (long follower : getFollowers(task)) {
+                mStorage.update(follower, response.contentLength, response.md5, response.validator);
+              }
+              // segments opened below must carry the new validator
+              task = mStorage.find(task.getId());
+            }
+            if (bytesRead == 0 && restoreFromCache(task, getExpectedMd5(task))) {
+              // the headers name content which is already cached, the body is closed unread
+              md5 = null;
+              return;
+            } else {
               mBus.downloading(task.getId(), bytesRead);
-              if (isCanceled(task.getId())) {
-                break;
+              Progress progress = createProgress(bytesRead);
+
+              long end = response.response.body().contentLength() >= 0 ? response.contentLength : -1;
+              // keep tracking a file preallocated by a previous run even if preallocation was turned off since
+              boolean persisted = preallocate(task, end) || !segments.isEmpty();
+              segments = createSegments(task, response);
+              if (segments.isEmpty()) {
+                // single connection, the file is written up to the end of the stream, the row covers it from byte 0 so a resume
+                // still counts the bytes of the previous runs
+                segments.add(new Segment(0, 0, end, bytesRead));
+              }
+              persisted = persisted || segments.size() > 1 || isCheckpointEnabled();
+              if (persisted) {
+                mStorage.update(task.getId(), segments);
               }
+              downloadSegments(task, response.response, segments, createMirrors(task), md5, progress, persisted, canceled);
             }
           }
         }
       }
     } catch (Exception exception) {
-      // increase retry count and forward exception
-      mStorage.increaseRetryCount(task.getId());
+      // increase retry count and forward exception, a changed file is not a failure
+      if (!(exception instanceof ChangedException)) {
+        mStorage.increaseRetryCount(task.getId());
+      }
       throw exception;
     } finally {
       if (response != null && response.response != null) {
         response.response.close();
       }
-      if (input != null) {
-        //noinspection ThrowFromFinallyBlock
-        input.close();
-      }
-      if (output != null) {
-        //noinspection ThrowFromFinallyBlock
-        output.close();
-      }
-    }
-
-    if (!isCanceled(task.getId())) {
-      mBus.downloaded(task.getId());
-      // get latest task info
-      task = mStorage.find(task.getId());
-      mBus.validating(task.getId());
-      if (FileUtils.matchMd5(task.getTempFile(), task.getMd5())) {
-        File renamedOutputFile = FileUtils.move(task.getTempFile(), task.getDestFile(), true);
-        mStorage.update(task.getId(), Uri.fromFile(renamedOutputFile));
-        // get latest task info and call interceptors
-        task = mStorage.find(task.getId());
-        for (Interceptor interceptor : getInterceptors()) {
-          interceptor.onDownloaded(Info.create(task, task.getContentLength(), Info.Status.DOWNLOADED));
-        }
-        // on download success
-        mStorage.update(task.getId(), Task.State.SUCCESS);
-        mBus.succeed(task.getId());
-      } else {
-        mStorage.update(task.getId(), Task.State.ACTIVE);
-        FileUtils.delete(task.getTempFile());
-        mBus.failed(task.getId());
-        throw new IllegalStateException(String.format(Locale.US, "Mismatch md5 for task %d", task.getId()));
+      if (md5 != null) {
+        // checkpoint hashed prefix so that resuming does not need to read it again
+        mStorage.update(task.getId(), md5);
       }
+    }
+
+    if (!canceled.get()) {
+      complete(task, md5);
     } else {
       mBus.pausing(task.getId());
     }
   }
 
+  /**
+   * Writes the segment until its end, or until the end of the stream if its end is unknown. A connection which fails on a source
+   * that gets dropped is opened again on another source from the position reached.
+   */
+  private void downloadSegment(Task task, Segment segment, Response response, Mirrors<Uri> mirrors, Md5 md5, Progress progress,
+      boolean persisted, AtomicBoolean aborted, AtomicBoolean canceled) throws IOException {
+    while (true) {
+      Uri uri = response != null ? mirrors.acquire(task.getUri()) : mirrors.acquire();
+      long position = segment.getPosition();
+      long startedAt = System.nanoTime();
+      try {
+        writeSegment(task, segment, response != null ? response : openSegment(task, segment, uri), md5, progress, persisted, aborted,
+            canceled);
+      } catch (IOException exception) {
+        boolean dropped = mirrors.release(uri, segment.getPosition() - position, System.nanoTime() - startedAt, true);
+        if (!dropped || exception instanceof ChangedException || segment.getEnd() < 0 || aborted.get() || canceled.get()) {
+          throw exception;
+        }
+        log().d("Drop source of task %d | %s | %s", task.getId(), uri, exception.getMessage());
+        response = null;
+        continue;
+      }
+      if (mirrors.release(uri, segment.getPosition() - position, System.nanoTime() - startedAt, false)) {
+        log().d("Drop slow source of task %d | %s", task.getId(), uri);
+      }
+      return;
+    }
+  }
+
+  private void downloadSegments(Task task, Response response, List<Segment> segments, Mirrors<Uri> mirrors, Md5 md5,
+      Progress progress, boolean persisted, AtomicBoolean canceled) throws IOException {
+    AtomicBoolean aborted = new AtomicBoolean();
+    if (segments.size() == 1) {
+      // nothing to run in parallel, stay on the calling thread
+      try {
+        downloadSegment(task, segments.get(0), response, mirrors, md5, progress, persisted, aborted, canceled);
+      } finally {
+        onProgress(task, progress, 0);
+      }
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<>();
+    // workers add the segments they split off while this loop runs
+    for (Segment segment : new ArrayList<>(segments)) {
+      if (segment.isCompleted()) {
+        continue;
+      }
+      // the initial response is already positioned at the start of the first segment
+      Response segmentResponse = segment.getIndex() == 0 ? response : null;
+      futures.add(mSegmentExecutor.submit(() -> {
+        try {
+          Segment current = segment;
+          Response currentResponse = segmentResponse;
+          while (current != null) {
+            current.start();
+            downloadSegment(task, current, currentResponse, mirrors, md5, progress, persisted, aborted, canceled);
+            currentResponse = null;
+            // an idle connection helps the slowest one instead of waiting for it
+            current = aborted.get() || canceled.get() ? null : steal(task, segments, persisted);
+          }
+        } catch (Exception exception) {
+          aborted.set(true);
+          throw exception;
+        }
+        return null;
+      }));
+    }
+    Throwable throwable = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throwable = throwable != null ? throwable : e.getCause();
+      } catch (InterruptedException e) {
+        aborted.set(true);
+        throwable = throwable != null ? throwable : new InterruptedIOException();
+      }
+    }
+    onProgress(task, progress, 0);
+    if (throwable instanceof IOException) {
+      throw (IOException) throwable;
+    } else if (throwable != null) {
+      throw new IOException(throwable);
+    }
+  }
+
+  /**
+   * @return the last successful task of the same uri whose file is still there, which a refresh checks against the server.
+   */
+  private Task findPrevious(Task task) {
+    Task previous = mStorage.find(task.getUri(), Task.State.SUCCESS);
+    return previous != null && previous.getId() != task.getId() && previous.getDestFile().exists() ? previous : null;
+  }
+
+  private List<Segment> findSegments(Task task) {
+    List<Segment> segments = mStorage.findSegments(task.getId());
+    if (!segments.isEmpty() && !task.getTempFile().exists()) {
+      // temp file is gone, stored ranges are meaningless
+      mStorage.removeSegments(task.getId());
+      segments.clear();
+    }
+    return segments;
+  }
+
+  /**
+   * Copies the file of a led transfer into the temp file of a follower, then completes the follower.
+   *
+   * @return false if the follower was not finished and has to download on its own.
+   */
+  private boolean follow(long id, Task leader) {
+    Task task = mStorage.find(id);
+    if (task == null || !task.isActive()) {
+      // paused while waiting
+      return true;
+    }
+    try {
+      File file = task.getTempFile();
+      FileUtils.delete(file);
+      mStorage.removeSegments(id);
+      FileUtils.copy(leader.getDestFile(), file);
+      mStorage.update(id, file.length(), leader.getMd5(), leader.getValidator());
+      mBus.downloading(id, file.length());
+      complete(task, null);
+      return true;
+    } catch (Exception exception) {
+      log().e(exception, "Could not copy task %d to task %d", leader.getId(), id);
+      return false;
+    }
+  }
+
+  private Iterable<Long> getFollowers(Task task) {
+    Transfer transfer = mTransfers.get(task.getUri().toString());
+    return transfer != null && transfer.leaderId == task.getId() ? transfer.followers : Collections.<Long>emptyList();
+  }
+
   private List<Interceptor> getInterceptors() {
     return DownloadManager.getInstance().getConfig().interceptors;
   }
 
-  private ResponseInfo initResponse(Task task) throws IOException {
+  /**
+   * @param previous a task of the same uri whose file is sent again only if the server has a newer one.
+   */
+  private ResponseInfo initResponse(Task task, Md5 md5, long bytesRead, Task previous) throws IOException {
     File file = task.getTempFile();
     long contentLength = task.getContentLength();
-    long bytesRead = task.getBytesRead();
-    if (bytesRead == contentLength && contentLength > 0 && FileUtils.matchMd5(file, task.getMd5())) {
-      return new ResponseInfo(file, null, task.getMd5(), task.getContentLength(), bytesRead);
+    if (bytesRead == contentLength && contentLength > 0 && FileUtils.matchMd5(md5.toHexString(), getExpectedMd5(task))) {
+      return new ResponseInfo(file, null, task.getMd5(), task.getValidator(), task.getContentLength(), bytesRead, false);
     }
-    Request request = new Request.Builder()
+    Request.Builder builder = new Request.Builder()
         .url(task.getUri().toString())
-        .addHeader("Range", "bytes=" + bytesRead + "-")
-        .build();
-    Response response = mClient.newCall(request).execute();
+        .addHeader("Range", "bytes=" + bytesRead + "-");
+    if (bytesRead > 0 && task.getValidator() != null) {
+      // the server answers with the whole file if it changed since the temp file was started
+      builder.addHeader("If-Range", task.getValidator());
+    }
+    if (previous != null && previous.getMd5() != null) {
+      // md5 holds the ETag as sent, which If-None-Match accepts even if it is weak
+      builder.addHeader("If-None-Match", previous.getMd5());
+    }
+    if (previous != null && previous.getValidator() != null && !previous.getValidator().equals(previous.getMd5())) {
+      builder.addHeader("If-Modified-Since", previous.getValidator());
+    }
+    Response response = mHedger.execute(mClient, builder.build());
+    if (previous != null && response.code() == NOT_MODIFIED) {
+      response.close();
+      return new ResponseInfo(file, null, previous.getMd5(), previous.getValidator(), previous.getContentLength(), 0, true);
+    }
     if (!response.isSuccessful()) {
       if (response.code() == REQUESTED_RANGE_NOT_SATISFIABLE) {
         response.close();
         FileUtils.delete(file);
-        return initResponse(task);
+        mStorage.removeSegments(task.getId());
+        md5.reset();
+        return initResponse(task, md5, 0, previous);
       } else {
         throw new IOException("Unexpected code " + response);
       }
     }
-    return new ResponseInfo(file, response, response.header("ETag"), bytesRead + response.body().contentLength(), bytesRead);
+    if (bytesRead > 0 && response.code() != PARTIAL_CONTENT) {
+      // changed or ranges are not supported, either way the body starts at offset 0
+      FileUtils.delete(file);
+      mStorage.removeSegments(task.getId());
+      md5.reset();
+      bytesRead = 0;
+    }
+    return new ResponseInfo(file, response, response.header("ETag"), getValidator(response), bytesRead + response.body().contentLength(),
+        bytesRead, false);
   }
 
-  private boolean isCanceled(long id) {
+  /**
+   * Checkpoints force the temp file to disk before they store the written length of a segment, so a resume after a crash
+   * never trusts bytes which were not flushed.
+   */
+  private boolean isCheckpointEnabled() {
+    return getConfig().checkpointStepInBytes > 0 || getConfig().checkpointIntervalInMilliseconds > 0;
+  }
+
+  /**
+   * Leads a new transfer of the uri of the task if there is none, otherwise follows the one of another task if the task has nothing
+   * of its own yet, or what it has comes from the same version. Both happen under one lock, so two tasks starting together never
+   * both lead.
+   *
+   * @return the transfer the task leads or follows, or null if it should be downloaded on its own.
+   */
+  private Transfer join(Task task) {
+    synchronized (mTransfers) {
+      String key = task.getUri().toString();
+      Transfer transfer = mTransfers.get(key);
+      if (transfer == null) {
+        transfer = new Transfer(task.getId());
+        mTransfers.put(key, transfer);
+        return transfer;
+      }
+      if (transfer.leaderId == task.getId()) {
+        return null;
+      }
+      Task leader = mStorage.find(transfer.leaderId);
+      boolean fresh = !task.getTempFile().exists();
+      if (leader == null || !fresh && (task.getValidator() == null || !task.getValidator().equals(leader.getValidator()))) {
+        return null;
+      }
+      transfer.followers.add(task.getId());
+      if (leader.getContentLength() > 0) {
+        mStorage.update(task.getId(), leader.getContentLength(), leader.getMd5(), leader.getValidator());
+      }
+      return transfer;
+    }
+  }
+
+  private boolean matchMd5(Task task, Md5 md5) throws IOException {
+    if (md5 == null) {
+      return FileUtils.matchMd5(task.getTempFile(), getExpectedMd5(task), mBufferPool);
+    }
+    // hash whatever was not seen while streaming, e.g. segments written out of order
+    FileUtils.updateMd5(md5, task.getTempFile(), task.getTempFile().length(), mBufferPool);
+    return FileUtils.matchMd5(md5.toHexString(), getExpectedMd5(task));
+  }
+
+  /**
+   * Hands a chunk to the writer, waiting while the ring is full.
+   *
+   * @return false if the writer stopped before it could take the chunk.
+   */
+  private boolean offer(BlockingQueue<Chunk> ring, Future<Void> writing, Chunk chunk) throws InterruptedIOException {
+    try {
+      while (!ring.offer(chunk, PIPELINE_POLL_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+        if (writing.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    } catch (InterruptedException ignore) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Emits progress when it passes the configured throttle. A count of 0 flushes whatever has not been emitted yet.
+   */
+  private void onProgress(Task task, Progress progress, long count) {
+    synchronized (progress) {
+      if (count > 0 ? progress.add(count) : progress.flush()) {
+        mBus.downloading(task.getId(), progress.get());
+        for (long follower : getFollowers(task)) {
+          mBus.downloading(follower, progress.get());
+        }
+      }
+    }
+  }
+
+  /**
+   * Requests the missing range of the segment from the given source. Only the primary uri is checked against the stored validator,
+   * mirrors have their own, so a mirror must answer with exactly the range asked and the full length of the file.
+   */
+  private Response openSegment(Task task, Segment segment, Uri uri) throws IOException {
+    boolean primary = uri.equals(task.getUri());
+    Request.Builder builder = new Request.Builder()
+        .url(uri.toString())
+        .addHeader("Range", "bytes=" + segment.getPosition() + "-" + (segment.getEnd() - 1));
+    if (primary && task.getValidator() != null) {
+      builder.addHeader("If-Range", task.getValidator());
+    }
+    Response response = mHedger.execute(mClient, builder.build());
+    if (primary && response.code() == OK) {
+      response.close();
+      throw new ChangedException(String.format(Locale.US, "Full content instead of %s", segment));
+    } else if (response.code() != PARTIAL_CONTENT) {
+      response.close();
+      throw new IOException("Unexpected code " + response);
+    }
+    String contentRange = response.header("Content-Range");
+    if (!primary && task.getContentLength() > 0 && (contentRange == null || !contentRange.endsWith("/" + task.getContentLength()))) {
+      response.close();
+      throw new IOException(String.format(Locale.US, "Mirror %s has another length: %s", uri, contentRange));
+    }
+    return response;
+  }
+
+  /**
+   * Reads a segment on the calling thread while another thread writes it, so a slow disk does not stall the socket. Up to
+   * pipelineDepth chunks wait in between, after that the reader blocks until the writer catches up.
+   */
+  private void pipeSegment(Task task, Segment segment, BufferedSource source, SegmentWriter writer, AtomicBoolean aborted,
+      AtomicBoolean canceled) throws IOException {
+    BlockingQueue<Chunk> ring = new ArrayBlockingQueue<>(getConfig().pipelineDepth);
+    Future<Void> writing = mSegmentExecutor.submit(() -> {
+      Chunk chunk;
+      while ((chunk = ring.take()).data != null) {
+        try {
+          writer.write(chunk.data, chunk.count);
+        } finally {
+          mBufferPool.release(chunk.data);
+        }
+      }
+      return null;
+    });
+    BufferSizer sizer = createBufferSizer();
+    IOException failure = null;
+    try {
+      long position = segment.getPosition();
+      int length;
+      while (!aborted.get() && !canceled.get() && !writing.isDone() && (length = segment.reserve(position, sizer.get())) > 0) {
+        byte[] data = mBufferPool.acquire(sizer.get());
+        int count;
+        try {
+          count = readChunk(task, segment, source, data, length, sizer);
+        } catch (IOException exception) {
+          mBufferPool.release(data);
+          throw exception;
+        }
+        if (count == -1 || !offer(ring, writing, new Chunk(data, count))) {
+          mBufferPool.release(data);
+          break;
+        }
+        position += count;
+      }
+    } catch (IOException exception) {
+      failure = exception;
+    }
+    try {
+      // the writer drains what is left in the ring before it sees the end marker
+      offer(ring, writing, new Chunk(null, 0));
+      writing.get();
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+      failure = failure != null ? failure : cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    } catch (InterruptedException | InterruptedIOException exception) {
+      writing.cancel(true);
+      failure = failure != null ? failure : new InterruptedIOException();
+    } finally {
+      // chunks left behind by a writer which failed
+      for (Chunk chunk : ring) {
+        mBufferPool.release(chunk.data);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Reserves the full length of the temp file before any byte is transferred, so it is allocated at once and a full disk fails
+   * early with a clear error.
+   *
+   * @return true if the file is preallocated, its written length must then be tracked by segments instead of its length.
+   */
+  private boolean preallocate(Task task, long contentLength) throws IOException {
+    if (!getConfig().preallocate || contentLength <= 0) {
+      return false;
+    }
+    File file = task.getTempFile();
+    long required = contentLength - file.length();
+    if (required <= 0) {
+      return true;
+    }
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null && directory.getUsableSpace() < required) {
+      throw new IOException(String.format(Locale.US, "Not enough space for task %d | %d bytes required, %d usable", task.getId(),
+          required, directory.getUsableSpace()));
+    }
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.setLength(contentLength);
+    } finally {
+      output.close();
+    }
+    return true;
+  }
+
+  /**
+   * Reads until data is full or the stream ends, so a large chunk is written and hashed in one call.
+   *
+   * @return the number of bytes read, or -1 if the stream was already exhausted.
+   */
+  private int read(BufferedSource source, byte[] data, int length) throws IOException {
+    int count = 0;
+    while (count < length) {
+      int read = source.read(data, count, length - count);
+      if (read == -1) {
+        break;
+      }
+      count += read;
+    }
+    return count == 0 && length > 0 ? -1 : count;
+  }
+
+  /**
+   * Reads the next chunk of a segment and feeds the time it took to the sizer.
+   *
+   * @return the number of bytes read, or -1 at the end of a segment whose end is unknown.
+   */
+  private int readChunk(Task task, Segment segment, BufferedSource source, byte[] data, int length, BufferSizer sizer)
+      throws IOException {
+    long readAt = System.nanoTime();
+    int count = read(source, data, length);
+    sizer.onChunk(count, System.nanoTime() - readAt);
+    if (count == -1 && segment.getEnd() >= 0) {
+      throw new IOException(String.format(Locale.US, "Unexpected end of stream for task %d | %s", task.getId(), segment));
+    }
+    return count;
+  }
+
+  /**
+   * Finishes the followers of a led transfer with its file. If the transfer ended without one, e.g. paused, failed or moved away by
+   * an interceptor, the followers are handed to the {@link OnReleaseListener} to run on their own. Tasks enqueued from now on start
+   * a transfer of their own.
+   */
+  private void release(Task task, Transfer transfer) {
+    synchronized (mTransfers) {
+      mTransfers.remove(task.getUri().toString());
+    }
+    Task leader = mStorage.find(task.getId());
+    boolean succeed = leader != null && leader.getState() == Task.State.SUCCESS && leader.getDestFile().exists();
+    List<Long> released = new ArrayList<>();
+    for (long follower : transfer.followers) {
+      if (!succeed || !follow(follower, leader)) {
+        released.add(follower);
+      }
+    }
+    OnReleaseListener listener = mOnReleaseListener;
+    if (!released.isEmpty() && listener != null) {
+      listener.onRelease(released);
+    }
+  }
+
+  /**
+   * Completes the task with a copy of the cached file of the given md5. The cache only holds files which matched their md5, so the
+   * copy goes straight to the destination without being hashed again.
+   *
+   * @return false on a cache miss.
+   */
+  private boolean restoreFromCache(Task task, String md5) throws IOException {
+    File cached = mContentCache.get(md5);
+    if (cached == null) {
+      return false;
+    }
+    log().d("Restore task %d from cache", task.getId());
+    FileUtils.delete(task.getTempFile());
+    mStorage.removeSegments(task.getId());
+    File file = FileUtils.copy(cached, task.getDestFile(), true);
+    mStorage.update(task.getId(), file.length(), task.getMd5(), task.getValidator());
+    mStorage.update(task.getId(), Uri.fromFile(file));
+    mBus.downloading(task.getId(), file.length());
+    mBus.downloaded(task.getId());
+    succeed(task.getId());
+    return true;
+  }
+
+  /**
+   * Restores the checkpointed md5 of the task and brings it up to length, which must be a fully written prefix of the temp file.
+   */
+  private Md5 restoreMd5(Task task, long length) throws IOException {
+    Md5 md5 = Md5.from(task.getMd5State());
+    if (md5 == null || md5.getCount() > length) {
+      md5 = new Md5();
+    }
+    FileUtils.updateMd5(md5, task.getTempFile(), length, mBufferPool);
+    return md5;
+  }
+
+  /**
+   * Completes the task with the file of the previous task, which the server reported as not modified. The file was already
+   * validated and given to the interceptors when it was downloaded, so neither happens again.
+   */
+  private void reuse(Task task, Task previous) {
+    log().d("Reuse task %d for task %d", previous.getId(), task.getId());
+    FileUtils.delete(task.getTempFile());
+    mStorage.removeSegments(task.getId());
+    mStorage.update(task.getId(), previous.getContentLength(), previous.getMd5(), previous.getValidator());
+    mStorage.update(task.getId(), previous.getDestUri());
+    mStorage.update(task.getId(), Task.State.SUCCESS);
+    mBus.succeed(task.getId());
+  }
+
+  /**
+   * Splits the segment expected to finish last and hands its second half to the calling connection.
+   *
+   * @return the segment to download next, or null if no segment has enough bytes left to be worth a new request.
+   */
+  private Segment steal(Task task, List<Segment> segments, boolean persisted) {
+    synchronized (segments) {
+      int index = 0;
+      List<Segment> candidates = new ArrayList<>();
+      for (Segment segment : segments) {
+        index = Math.max(index, segment.getIndex() + 1);
+        if (!segment.isCompleted()) {
+          candidates.add(segment);
+        }
+      }
+      while (!candidates.isEmpty()) {
+        Segment victim = candidates.get(0);
+        for (Segment candidate : candidates) {
+          if (candidate.getTimeLeft() > victim.getTimeLeft()) {
+            victim = candidate;
+          }
+        }
+        candidates.remove(victim);
+        Segment created = victim.split(index, MIN_SPLIT_SIZE);
+        if (created != null) {
+          segments.add(created);
+          if (persisted) {
+            mStorage.split(task.getId(), victim, created);
+          }
+          log().d("Split task %d | %s | %s", task.getId(), victim, created);
+          return created;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Hands the file of the task to the interceptors, then marks the task as succeeded.
+   */
+  private void succeed(long id) {
     Task task = mStorage.find(id);
-    return task == null || !task.isActive();
+    for (Interceptor interceptor : getInterceptors()) {
+      interceptor.onDownloaded(Info.create(task, task.getContentLength(), Info.Status.DOWNLOADED));
+    }
+    mStorage.update(id, Task.State.SUCCESS);
+    mBus.succeed(id);
+  }
+
+  /**
+   * Writes the body of an opened response into the segment, through a second thread when pipelineDepth is set.
+   */
+  private void writeSegment(Task task, Segment segment, Response response, Md5 md5, Progress progress, boolean persisted,
+      AtomicBoolean aborted, AtomicBoolean canceled) throws IOException {
+    SegmentWriter writer = null;
+    try {
+      BufferedSource source = response.body().source();
+      writer = new SegmentWriter(task, segment, md5, progress, persisted);
+      if (getConfig().pipelineDepth > 0) {
+        pipeSegment(task, segment, source, writer, aborted, canceled);
+      } else {
+        copySegment(task, segment, source, writer, aborted, canceled);
+      }
+    } finally {
+      response.close();
+      if (writer != null) {
+        //noinspection ThrowFromFinallyBlock
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * Thrown when a range request gets the whole file back, which means the file changed since its ranges were stored.
+   */
+  private static class ChangedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ChangedException(String message) {
+      super(message);
+    }
+  }
+
+  private static class Chunk {
+
+    private final int count;
+
+    private final byte[] data;
+
+    Chunk(byte[] data, int count) {
+      this.data = data;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Receives the followers of a transfer which ended without a file. They are not running and have to be started again.
+   */
+  public interface OnReleaseListener {
+
+    void onRelease(List<Long> ids);
   }
 
   private static class ResponseInfo {
@@ -196,14 +1014,113 @@ public class Downloader {
 
     private final String md5;
 
+    private final boolean notModified;
+
     private final Response response;
 
-    ResponseInfo(File file, Response response, String md5, long contentLength, long bytesRead) {
+    private final String validator;
+
+    ResponseInfo(File file, Response response, String md5, String validator, long contentLength, long bytesRead,
+        boolean notModified) {
       this.file = file;
       this.response = response;
       this.md5 = md5;
+      this.validator = validator;
       this.contentLength = contentLength;
       this.bytesRead = bytesRead;
+      this.notModified = notModified;
+    }
+  }
+
+  /**
+   * Writes the chunks of a segment in order, extends the md5 and checkpoints the segment. It is used by one thread at a time.
+   */
+  private class SegmentWriter implements Closeable {
+
+    private final FileChannel mChannel;
+
+    private final Md5 mMd5;
+
+    private final boolean mPersisted;
+
+    private final Progress mProgress;
+
+    private final Segment mSegment;
+
+    private final Task mTask;
+
+    private long mCheckpoint;
+
+    private long mCheckpointAt;
+
+    SegmentWriter(Task task, Segment segment, Md5 md5, Progress progress, boolean persisted) throws IOException {
+      mTask = task;
+      mSegment = segment;
+      mMd5 = md5;
+      mProgress = progress;
+      mPersisted = persisted;
+      mCheckpoint = segment.getPosition();
+      mCheckpointAt = System.nanoTime();
+      mChannel = new RandomAccessFile(task.getTempFile(), "rw").getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (mPersisted && mSegment.getPosition() != mCheckpoint) {
+          checkpoint();
+        }
+      } finally {
+        mChannel.close();
+      }
+    }
+
+    void write(byte[] data, int count) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+      while (buffer.hasRemaining()) {
+        mChannel.write(buffer, mSegment.getPosition() + buffer.position());
+      }
+      synchronized (mMd5) {
+        // only the segment writing right after the hashed prefix can extend it
+        if (mMd5.getCount() == mSegment.getPosition()) {
+          mMd5.update(data, 0, count);
+        }
+      }
+      mSegment.advance(count);
+      if (mPersisted && shouldCheckpoint()) {
+        checkpoint();
+      }
+      onProgress(mTask, mProgress, count);
+    }
+
+    private void checkpoint() throws IOException {
+      if (isCheckpointEnabled()) {
+        mChannel.force(false);
+      }
+      mCheckpoint = mSegment.getPosition();
+      mCheckpointAt = System.nanoTime();
+      mStorage.update(mTask.getId(), mSegment);
+    }
+
+    private boolean shouldCheckpoint() {
+      long step = getConfig().checkpointStepInBytes;
+      long interval = getConfig().checkpointIntervalInMilliseconds;
+      return step > 0 && mSegment.getPosition() - mCheckpoint >= step
+          || interval > 0 && (System.nanoTime() - mCheckpointAt) / 1000000 >= interval;
+    }
+  }
+
+  /**
+   * A download other tasks of the same uri wait for instead of fetching the file again.
+   */
+  private static class Transfer {
+
+    private final Set<Long> followers = new CopyOnWriteArraySet<>();
+
+    private final long leaderId;
+
+    Transfer(long leaderId) {
+      this.leaderId = leaderId;
     }
   }
 }
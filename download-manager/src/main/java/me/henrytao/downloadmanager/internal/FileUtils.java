@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 
@@ -33,6 +34,40 @@ import java.security.MessageDigest;
 
 class FileUtils {
 
+  private static final int HASH_BUFFER_SIZE = 8192;
+
+  public static void copy(File input, File output) throws IOException {
+    FileChannel inputChannel = null;
+    FileChannel outputChannel = null;
+    try {
+      inputChannel = new FileInputStream(input).getChannel();
+      outputChannel = new FileOutputStream(output).getChannel();
+      inputChannel.transferTo(0, inputChannel.size(), outputChannel);
+    } finally {
+      if (inputChannel != null) {
+        //noinspection ThrowFromFinallyBlock
+        inputChannel.close();
+      }
+      if (outputChannel != null) {
+        //noinspection ThrowFromFinallyBlock
+        outputChannel.close();
+      }
+    }
+  }
+
+  /**
+   * @return the file written, which is renamed if output exists and autoRename is set.
+   */
+  @SuppressWarnings({"ResultOfMethodCallIgnored"})
+  public static File copy(File input, File output, boolean autoRename) throws IOException {
+    output.getParentFile().mkdirs();
+    if (output.exists() && autoRename) {
+      output = autoRenameIfExists(output);
+    }
+    copy(input, output);
+    return output;
+  }
+
   public static void delete(File fileOrDirectory) {
     if (fileOrDirectory == null || !fileOrDirectory.exists()) {
       return;
@@ -58,11 +93,11 @@ class FileUtils {
     return file;
   }
 
-  public static String getMd5(File file) {
+  public static String getMd5(File file, BufferPool pool) {
     StringBuilder builder = new StringBuilder();
+    byte[] buffer = pool.acquire(HASH_BUFFER_SIZE);
     try {
       InputStream input = new FileInputStream(file);
-      byte[] buffer = new byte[1024];
       MessageDigest md5Hash = MessageDigest.getInstance("MD5");
       int numRead = 0;
       while (numRead != -1) {
@@ -78,15 +113,20 @@ class FileUtils {
       }
     } catch (Exception ignore) {
       ignore.printStackTrace();
+    } finally {
+      pool.release(buffer);
     }
     return builder.length() > 0 ? builder.toString().toLowerCase() : null;
   }
 
-  public static boolean matchMd5(File file, String md5) {
+  public static boolean matchMd5(File file, String md5, BufferPool pool) {
     if (file == null) {
       return false;
     }
-    String fileMd5 = getMd5(file);
+    return matchMd5(getMd5(file, pool), md5);
+  }
+
+  public static boolean matchMd5(String fileMd5, String md5) {
     return fileMd5 != null && md5 != null && fileMd5.toLowerCase().replaceAll("\"", "").equals(md5.toLowerCase().replaceAll("\"", ""));
   }
 
@@ -100,28 +140,36 @@ class FileUtils {
       if (output.exists() && autoRename) {
         output = autoRenameIfExists(output);
       }
-      FileChannel inputChannel = null;
-      FileChannel outputChannel = null;
-      try {
-        inputChannel = new FileInputStream(input).getChannel();
-        outputChannel = new FileOutputStream(output).getChannel();
-        inputChannel.transferTo(0, inputChannel.size(), outputChannel);
-        inputChannel.close();
+      if (!input.renameTo(output)) {
+        // e.g. another file system
+        copy(input, output);
         input.delete();
-      } finally {
-        if (inputChannel != null) {
-          //noinspection ThrowFromFinallyBlock
-          inputChannel.close();
-        }
-        if (outputChannel != null) {
-          //noinspection ThrowFromFinallyBlock
-          outputChannel.close();
-        }
       }
     }
     return output;
   }
 
+  /**
+   * Feeds bytes [md5.getCount(), end) of file into md5. Used to catch up with bytes which were not hashed while streaming.
+   */
+  static void updateMd5(Md5 md5, File file, long end, BufferPool pool) throws IOException {
+    if (md5.getCount() >= end) {
+      return;
+    }
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    byte[] buffer = pool.acquire(HASH_BUFFER_SIZE);
+    try {
+      input.seek(md5.getCount());
+      int numRead;
+      while (md5.getCount() < end && (numRead = input.read(buffer, 0, (int) Math.min(buffer.length, end - md5.getCount()))) != -1) {
+        md5.update(buffer, 0, numRead);
+      }
+    } finally {
+      pool.release(buffer);
+      input.close();
+    }
+  }
+
   private static File autoRenameIfExists(File file) {
     if (!file.exists()) {
       return file;
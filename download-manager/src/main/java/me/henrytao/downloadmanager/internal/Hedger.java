@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Executes requests with a hedge: when the headers take longer than the given percentile of the recent response times, an
+ * identical request is sent and whichever answers first is used, the other one is canceled. Response times are measured from the
+ * start of the first request, so a hedge which wins still records how long the first request had been waiting.
+ */
+public final class Hedger {
+
+  /**
+   * Shortest delay before a hedge, so a run of fast responses does not hedge every request.
+   */
+  static final long MIN_DELAY_IN_MILLISECONDS = 50;
+
+  static final int MIN_SAMPLES = 20;
+
+  private static final int MAX_SAMPLES = 100;
+
+  private final long mDelayInMilliseconds;
+
+  private final int mPercentile;
+
+  private final long[] mSamples = new long[MAX_SAMPLES];
+
+  private long mHedgeCount;
+
+  private int mSampleCount;
+
+  private int mSampleIndex;
+
+  private long mWinCount;
+
+  /**
+   * @param percentile percentile of the recent response times after which a request is hedged, 0 disables hedging.
+   * @param delayInMilliseconds delay used until enough response times are known.
+   */
+  public Hedger(int percentile, long delayInMilliseconds) {
+    mPercentile = Math.max(0, Math.min(100, percentile));
+    mDelayInMilliseconds = delayInMilliseconds;
+  }
+
+  public synchronized long getDelayInMilliseconds() {
+    int count = mSampleCount;
+    if (count < MIN_SAMPLES) {
+      return Math.max(MIN_DELAY_IN_MILLISECONDS, mDelayInMilliseconds);
+    }
+    long[] samples = Arrays.copyOf(mSamples, count);
+    Arrays.sort(samples);
+    int index = (int) Math.ceil(mPercentile / 100.0 * count) - 1;
+    return Math.max(MIN_DELAY_IN_MILLISECONDS, samples[Math.max(0, Math.min(count - 1, index))]);
+  }
+
+  /**
+   * @return number of hedge requests sent.
+   */
+  public synchronized long getHedgeCount() {
+    return mHedgeCount;
+  }
+
+  /**
+   * @return number of hedge requests which answered before the request they hedged.
+   */
+  public synchronized long getWinCount() {
+    return mWinCount;
+  }
+
+  Response execute(Call.Factory client, Request request) throws IOException {
+    if (mPercentile == 0) {
+      return client.newCall(request).execute();
+    }
+    Race race = new Race();
+    Call primary = race.start(client.newCall(request));
+    try {
+      if (!race.await(getDelayInMilliseconds())) {
+        onHedge();
+        race.start(client.newCall(request));
+        race.await(-1);
+      }
+      Response response = race.get();
+      if (race.getWinner() != primary) {
+        onWin();
+      }
+      sample(race.getElapsedInMilliseconds());
+      return response;
+    } catch (InterruptedException ignore) {
+      throw new InterruptedIOException();
+    } finally {
+      race.cancelLosers();
+    }
+  }
+
+  synchronized void sample(long elapsedInMilliseconds) {
+    mSamples[mSampleIndex] = elapsedInMilliseconds;
+    mSampleIndex = (mSampleIndex + 1) % MAX_SAMPLES;
+    mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+  }
+
+  private synchronized void onHedge() {
+    mHedgeCount += 1;
+  }
+
+  private synchronized void onWin() {
+    mWinCount += 1;
+  }
+
+  /**
+   * Keeps the first response of the calls it started. Responses which come after it are closed.
+   */
+  private static class Race implements Callback {
+
+    private final List<Call> mCalls = new ArrayList<>();
+
+    private long mElapsed;
+
+    private IOException mFailure;
+
+    private int mFailures;
+
+    private Response mResponse;
+
+    private long mStartedAt;
+
+    private Call mWinner;
+
+    @Override
+    public synchronized void onFailure(Call call, IOException e) {
+      mFailures += 1;
+      mFailure = mFailure != null ? mFailure : e;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void onResponse(Call call, Response response) throws IOException {
+      if (mResponse != null) {
+        response.close();
+        return;
+      }
+      mResponse = response;
+      mWinner = call;
+      // from the start of the first call, which is how long a request waits without the hedge up to the first response
+      mElapsed = System.nanoTime() - mStartedAt;
+      notifyAll();
+    }
+
+    /**
+     * @param timeoutInMilliseconds negative to wait until every call is done.
+     * @return true if a call answered or every call failed.
+     */
+    synchronized boolean await(long timeoutInMilliseconds) throws InterruptedException {
+      long deadline = System.nanoTime() + timeoutInMilliseconds * 1000000;
+      while (mResponse == null && mFailures < mCalls.size()) {
+        // rounded up, so the hedge is never sent before the delay
+        long remaining = timeoutInMilliseconds < 0 ? 0 : (deadline - System.nanoTime() + 999999) / 1000000;
+        if (timeoutInMilliseconds >= 0 && remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+      return true;
+    }
+
+    synchronized void cancelLosers() {
+      for (Call call : mCalls) {
+        if (call != mWinner) {
+          call.cancel();
+        }
+      }
+    }
+
+    synchronized Response get() throws IOException {
+      if (mResponse == null) {
+        throw mFailure;
+      }
+      return mResponse;
+    }
+
+    synchronized long getElapsedInMilliseconds() {
+      return mElapsed / 1000000;
+    }
+
+    synchronized Call getWinner() {
+      return mWinner;
+    }
+
+    Call start(Call call) {
+      synchronized (this) {
+        if (mCalls.isEmpty()) {
+          mStartedAt = System.nanoTime();
+        }
+        mCalls.add(call);
+      }
+      call.enqueue(this);
+      return call;
+    }
+  }
+}
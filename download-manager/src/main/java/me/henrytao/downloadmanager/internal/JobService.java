@@ -18,13 +18,12 @@ package me.henrytao.downloadmanager.internal;
 
 import com.evernote.android.job.JobManager;
 import com.evernote.android.job.JobRequest;
-import com.evernote.android.job.util.support.PersistableBundleCompat;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.support.annotation.NonNull;
 
-import java.util.Set;
-
 import me.henrytao.downloadmanager.DownloadManager;
 
 /**
@@ -37,61 +36,75 @@ public final class JobService {
     return DownloadManager.getInstance().getConfig();
   }
 
-  public JobService(Context context) {
-    JobManager.create(context.getApplicationContext()).addJobCreator(new JobService.JobCreator());
+  private final Context mContext;
+
+  public JobService(Context context, Dispatcher dispatcher) {
+    mContext = context.getApplicationContext();
+    JobManager.create(context.getApplicationContext()).addJobCreator(new JobService.JobCreator(dispatcher));
   }
 
-  public void enqueue(long taskId) {
-    Job.create(taskId).schedule();
+  /**
+   * @return true if the network the job requires is connected now, so tasks may start without waiting for the job.
+   */
+  public boolean isNetworkConnected() {
+    ConnectivityManager manager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo networkInfo = manager != null ? manager.getActiveNetworkInfo() : null;
+    return networkInfo != null && networkInfo.isConnected();
   }
 
-  public void stop(long taskId) {
-    Set<JobRequest> requests = JobManager.instance().getAllJobRequestsForTag(Job.TAG);
-    for (JobRequest request : requests) {
-      if (request.getExtras().getLong(Job.EXTRA_TASK_ID, 0) == taskId) {
-        JobManager.instance().cancel(request.getJobId());
-      }
-    }
+  /**
+   * Schedules the single job which wakes the dispatcher once network is available and keeps the process alive while it works.
+   */
+  public void schedule() {
+    Job.create().schedule();
   }
 
   private static final class Job extends com.evernote.android.job.Job {
 
-    private static final String EXTRA_TASK_ID = "EXTRA_TASK_ID";
-
     private static final String TAG = "DOWNLOADER";
 
-    private static JobRequest create(long taskId) {
-      PersistableBundleCompat bundle = new PersistableBundleCompat();
-      bundle.putLong(EXTRA_TASK_ID, taskId);
+    private static JobRequest create() {
       return new JobRequest.Builder(TAG)
           .setExecutionWindow(getConfig().executionWindowStartInMilliseconds, getConfig().executionWindowEndInMilliseconds)
           .setBackoffCriteria(getConfig().backoffInMilliseconds, getConfig().backoffPolicy)
           .setPersisted(getConfig().persisted)
-          .setExtras(bundle)
           .setRequiredNetworkType(JobRequest.NetworkType.CONNECTED)
           .setRequirementsEnforced(true)
+          .setUpdateCurrent(true)
           .build();
     }
 
+    private final Dispatcher mDispatcher;
+
+    private Job(Dispatcher dispatcher) {
+      mDispatcher = dispatcher;
+    }
+
     @NonNull
     @Override
     protected Result onRunJob(Params params) {
       try {
-        DownloadManager.getInstance().download(params.getExtras().getLong(EXTRA_TASK_ID, 0));
-      } catch (Exception e) {
+        mDispatcher.wake();
+        return mDispatcher.awaitIdle() ? Result.SUCCESS : Result.RESCHEDULE;
+      } catch (InterruptedException e) {
         return Result.RESCHEDULE;
       }
-      return Result.SUCCESS;
     }
   }
 
   private static final class JobCreator implements com.evernote.android.job.JobCreator {
 
+    private final Dispatcher mDispatcher;
+
+    private JobCreator(Dispatcher dispatcher) {
+      mDispatcher = dispatcher;
+    }
+
     @Override
     public com.evernote.android.job.Job create(String tag) {
       switch (tag) {
         case Job.TAG:
-          return new Job();
+          return new Job(mDispatcher);
       }
       return null;
     }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.util.Locale;
+
+/**
+ * MD5 whose intermediate state can be saved and restored, so a resumed download does not need to rehash its prefix.
+ * {@link java.security.MessageDigest} does not expose its state, hence this small implementation.
+ */
+final class Md5 {
+
+  private static final int BLOCK_SIZE = 64;
+
+  private static final int[] K = new int[64];
+
+  private static final int[] S = {7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21};
+
+  static {
+    for (int i = 0; i < K.length; i++) {
+      K[i] = (int) (long) ((1L << 32) * Math.abs(Math.sin(i + 1)));
+    }
+  }
+
+  static Md5 from(String state) {
+    if (state == null) {
+      return null;
+    }
+    try {
+      Md5 md5 = new Md5();
+      md5.mA = (int) Long.parseLong(state.substring(0, 8), 16);
+      md5.mB = (int) Long.parseLong(state.substring(8, 16), 16);
+      md5.mC = (int) Long.parseLong(state.substring(16, 24), 16);
+      md5.mD = (int) Long.parseLong(state.substring(24, 32), 16);
+      md5.mCount = Long.parseLong(state.substring(32, 48), 16);
+      int length = (int) (md5.mCount & (BLOCK_SIZE - 1));
+      if (state.length() != 48 + length * 2) {
+        return null;
+      }
+      for (int i = 0; i < length; i++) {
+        md5.mBuffer[i] = (byte) Integer.parseInt(state.substring(48 + i * 2, 50 + i * 2), 16);
+      }
+      return md5;
+    } catch (Exception ignore) {
+    }
+    return null;
+  }
+
+  private final byte[] mBuffer = new byte[BLOCK_SIZE];
+
+  private final int[] mWords = new int[16];
+
+  private int mA;
+
+  private int mB;
+
+  private int mC;
+
+  private long mCount;
+
+  private int mD;
+
+  Md5() {
+    reset();
+  }
+
+  private Md5(Md5 md5) {
+    mA = md5.mA;
+    mB = md5.mB;
+    mC = md5.mC;
+    mD = md5.mD;
+    mCount = md5.mCount;
+    System.arraycopy(md5.mBuffer, 0, mBuffer, 0, BLOCK_SIZE);
+  }
+
+  long getCount() {
+    return mCount;
+  }
+
+  String getState() {
+    StringBuilder builder = new StringBuilder(String.format(Locale.US, "%08x%08x%08x%08x%016x", mA, mB, mC, mD, mCount));
+    int length = (int) (mCount & (BLOCK_SIZE - 1));
+    for (int i = 0; i < length; i++) {
+      builder.append(String.format(Locale.US, "%02x", mBuffer[i] & 0xff));
+    }
+    return builder.toString();
+  }
+
+  void reset() {
+    mA = 0x67452301;
+    mB = 0xefcdab89;
+    mC = 0x98badcfe;
+    mD = 0x10325476;
+    mCount = 0;
+  }
+
+  /**
+   * Returns the digest of the bytes seen so far without ending this instance, so it can keep being updated.
+   */
+  String toHexString() {
+    Md5 md5 = new Md5(this);
+    long bits = mCount << 3;
+    int index = (int) (mCount & (BLOCK_SIZE - 1));
+    byte[] padding = new byte[index < 56 ? 64 - index : 128 - index];
+    padding[0] = (byte) 0x80;
+    for (int i = 0; i < 8; i++) {
+      padding[padding.length - 8 + i] = (byte) (bits >>> (8 * i));
+    }
+    md5.update(padding, 0, padding.length);
+    StringBuilder builder = new StringBuilder();
+    for (int value : new int[]{md5.mA, md5.mB, md5.mC, md5.mD}) {
+      for (int i = 0; i < 4; i++) {
+        builder.append(String.format(Locale.US, "%02x", (value >>> (8 * i)) & 0xff));
+      }
+    }
+    return builder.toString();
+  }
+
+  void update(byte[] input, int offset, int length) {
+    int index = (int) (mCount & (BLOCK_SIZE - 1));
+    mCount += length;
+    int i = 0;
+    if (index + length >= BLOCK_SIZE) {
+      i = BLOCK_SIZE - index;
+      System.arraycopy(input, offset, mBuffer, index, i);
+      transform(mBuffer, 0);
+      for (; i + BLOCK_SIZE <= length; i += BLOCK_SIZE) {
+        transform(input, offset + i);
+      }
+      index = 0;
+    }
+    System.arraycopy(input, offset + i, mBuffer, index, length - i);
+  }
+
+  private void transform(byte[] block, int offset) {
+    for (int i = 0; i < 16; i++) {
+      int j = offset + i * 4;
+      mWords[i] = (block[j] & 0xff) | (block[j + 1] & 0xff) << 8 | (block[j + 2] & 0xff) << 16 | (block[j + 3] & 0xff) << 24;
+    }
+    int a = mA;
+    int b = mB;
+    int c = mC;
+    int d = mD;
+    for (int i = 0; i < 64; i++) {
+      int f;
+      int g;
+      if (i < 16) {
+        f = (b & c) | (~b & d);
+        g = i;
+      } else if (i < 32) {
+        f = (d & b) | (~d & c);
+        g = (5 * i + 1) & 15;
+      } else if (i < 48) {
+        f = b ^ c ^ d;
+        g = (3 * i + 5) & 15;
+      } else {
+        f = c ^ (b | ~d);
+        g = (7 * i) & 15;
+      }
+      int temp = d;
+      d = c;
+      c = b;
+      b = b + Integer.rotateLeft(a + f + K[i] + mWords[g], S[(i >> 4) << 2 | (i & 3)]);
+      a = temp;
+    }
+    mA += a;
+    mB += b;
+    mC += c;
+    mD += d;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sources serving the same file during one download. Each connection takes the source which would give it the most throughput,
+ * a source is dropped once it fails or turns much slower than the best one, but the last one left is always kept.
+ *
+ * @param <T> type of the source address.
+ */
+class Mirrors<T> {
+
+  /**
+   * Bytes a connection must have read before its throughput is trusted.
+   */
+  static final long MIN_MEASURED_BYTES = 256 * 1024;
+
+  /**
+   * A source whose throughput falls below the best one divided by this ratio is dropped.
+   */
+  static final int SLOW_RATIO = 4;
+
+  private final List<Source<T>> mSources = new ArrayList<>();
+
+  Mirrors(T primary, List<T> mirrors) {
+    mSources.add(new Source<>(primary));
+    for (T mirror : mirrors) {
+      mSources.add(new Source<>(mirror));
+    }
+  }
+
+  /**
+   * Picks a source for a new connection, which should be given back with {@link #release(Object, long, long, boolean)}. A source
+   * which has not been measured yet is tried first, otherwise the one with the most throughput left per connection is used.
+   */
+  synchronized T acquire() {
+    Source<T> best = null;
+    for (Source<T> source : mSources) {
+      if (!source.dropped && (best == null || source.compareTo(best) < 0)) {
+        best = source;
+      }
+    }
+    best.active += 1;
+    return best.address;
+  }
+
+  /**
+   * Counts a connection which was opened on the given source without {@link #acquire()}.
+   */
+  synchronized T acquire(T address) {
+    find(address).active += 1;
+    return address;
+  }
+
+  synchronized List<T> getAlive() {
+    List<T> alive = new ArrayList<>();
+    for (Source<T> source : mSources) {
+      if (!source.dropped) {
+        alive.add(source.address);
+      }
+    }
+    return alive;
+  }
+
+  /**
+   * @param bytes number of bytes the connection read.
+   * @param nanoseconds time the connection was open.
+   * @param failed true if the connection ended with an error.
+   * @return true if the source is dropped, in which case the caller may retry on another one.
+   */
+  synchronized boolean release(T address, long bytes, long nanoseconds, boolean failed) {
+    Source<T> source = find(address);
+    source.active = Math.max(0, source.active - 1);
+    source.bytes += Math.max(0, bytes);
+    source.nanoseconds += Math.max(0, nanoseconds);
+    if (source.dropped || getAlive().size() <= 1) {
+      return source.dropped;
+    }
+    source.dropped = failed || isSlow(source);
+    return source.dropped;
+  }
+
+  private Source<T> find(T address) {
+    for (Source<T> source : mSources) {
+      if (source.address.equals(address)) {
+        return source;
+      }
+    }
+    throw new IllegalArgumentException("Unknown source " + address);
+  }
+
+  private boolean isSlow(Source<T> source) {
+    if (!source.isMeasured()) {
+      return false;
+    }
+    double best = 0;
+    for (Source<T> other : mSources) {
+      if (!other.dropped && other.isMeasured()) {
+        best = Math.max(best, other.getThroughput());
+      }
+    }
+    return source.getThroughput() * SLOW_RATIO < best;
+  }
+
+  private static class Source<T> implements Comparable<Source<T>> {
+
+    private final T address;
+
+    private int active;
+
+    private long bytes;
+
+    private boolean dropped;
+
+    private long nanoseconds;
+
+    Source(T address) {
+      this.address = address;
+    }
+
+    @Override
+    public int compareTo(Source<T> other) {
+      if (isMeasured() != other.isMeasured()) {
+        // an idle unmeasured source goes first, a busy one last since nothing says it can take more
+        return !isMeasured() ? (active == 0 ? -1 : 1) : (other.active == 0 ? 1 : -1);
+      }
+      if (!isMeasured()) {
+        return active - other.active;
+      }
+      return Double.compare(other.getThroughput() / (other.active + 1), getThroughput() / (active + 1));
+    }
+
+    double getThroughput() {
+      return nanoseconds > 0 ? (double) bytes / nanoseconds : 0;
+    }
+
+    boolean isMeasured() {
+      return bytes >= MIN_MEASURED_BYTES && nanoseconds > 0;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+/**
+ * Counts the bytes read by a download and decides when a progress event is worth emitting. It is not thread safe, callers
+ * which share it between segments must synchronize on it.
+ */
+class Progress {
+
+  private static long now() {
+    return System.nanoTime() / 1000000;
+  }
+
+  private final long mIntervalInMilliseconds;
+
+  private final long mStepInBytes;
+
+  private long mBytesRead;
+
+  private long mEmittedAt;
+
+  private long mEmittedBytes;
+
+  Progress(long bytesRead, long intervalInMilliseconds, long stepInBytes) {
+    mBytesRead = bytesRead;
+    mEmittedBytes = bytesRead;
+    mIntervalInMilliseconds = intervalInMilliseconds;
+    mStepInBytes = stepInBytes;
+    mEmittedAt = now();
+  }
+
+  /**
+   * @return true if the progress changed by at least the configured step and interval since the last emitted value.
+   */
+  boolean add(long count) {
+    mBytesRead += count;
+    long now = now();
+    if (mBytesRead - mEmittedBytes < Math.max(1, mStepInBytes) || now - mEmittedAt < mIntervalInMilliseconds) {
+      return false;
+    }
+    mEmittedAt = now;
+    mEmittedBytes = mBytesRead;
+    return true;
+  }
+
+  /**
+   * @return true if there are bytes which were never emitted. The current value is then considered emitted.
+   */
+  boolean flush() {
+    if (mBytesRead == mEmittedBytes) {
+      return false;
+    }
+    mEmittedAt = now();
+    mEmittedBytes = mBytesRead;
+    return true;
+  }
+
+  long get() {
+    return mBytesRead;
+  }
+}
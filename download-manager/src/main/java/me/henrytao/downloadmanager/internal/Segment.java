@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A byte range [start, end) of a task which is fetched by its own connection. An end below 0 means the length is unknown and the
+ * range lasts until the end of the stream.
+ */
+class Segment {
+
+  /**
+   * Columns in the order {@link #bind(SQLiteStatement, long)} binds them.
+   */
+  static final String[] COLUMNS = new String[]{Fields.TASK_ID, Fields.INDEX, Fields.START, Fields.END, Fields.POSITION};
+
+  static final String NAME = "segment";
+
+  static Segment create(Cursor cursor) {
+    if (cursor == null || cursor.isClosed()) {
+      return null;
+    }
+    return new Segment(
+        cursor.getInt(cursor.getColumnIndex(Fields.INDEX)),
+        cursor.getLong(cursor.getColumnIndex(Fields.START)),
+        cursor.getLong(cursor.getColumnIndex(Fields.END)),
+        cursor.getLong(cursor.getColumnIndex(Fields.POSITION))
+    );
+  }
+
+  static long getBytesRead(List<Segment> segments) {
+    long bytesRead = 0;
+    for (Segment segment : segments) {
+      bytesRead += segment.getPosition() - segment.getStart();
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Length of the prefix of the file which has been written without holes.
+   */
+  static long getContiguousLength(List<Segment> segments) {
+    long length = 0;
+    for (Segment segment : segments) {
+      if (segment.getStart() > length) {
+        break;
+      }
+      length = Math.max(length, segment.getPosition());
+      if (!segment.isCompleted()) {
+        break;
+      }
+    }
+    return length;
+  }
+
+  static boolean isCompleted(List<Segment> segments) {
+    for (Segment segment : segments) {
+      if (!segment.isCompleted()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static List<Segment> split(long contentLength, int count, long minSize) {
+    List<Segment> segments = new ArrayList<>();
+    if (contentLength <= 0) {
+      return segments;
+    }
+    count = (int) Math.max(1, Math.min(count, contentLength / Math.max(1, minSize)));
+    long size = contentLength / count;
+    for (int i = 0; i < count; i++) {
+      long start = i * size;
+      long end = i == count - 1 ? contentLength : start + size;
+      segments.add(new Segment(i, start, end, start));
+    }
+    return segments;
+  }
+
+  private final int mIndex;
+
+  private final long mStart;
+
+  private volatile long mEnd;
+
+  private volatile long mPosition;
+
+  private long mReserved;
+
+  private long mStartPosition;
+
+  private long mStartedAt;
+
+  Segment(int index, long start, long end, long position) {
+    mIndex = index;
+    mStart = start;
+    mEnd = end;
+    mPosition = position;
+    mReserved = position;
+    mStartPosition = position;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "Segment %d [%d, %d) at %d", mIndex, mStart, mEnd, mPosition);
+  }
+
+  long getEnd() {
+    return mEnd;
+  }
+
+  int getIndex() {
+    return mIndex;
+  }
+
+  long getPosition() {
+    return mPosition;
+  }
+
+  long getRemaining() {
+    return mEnd < 0 ? Long.MAX_VALUE : mEnd - mPosition;
+  }
+
+  long getStart() {
+    return mStart;
+  }
+
+  /**
+   * Estimates the time left in nanoseconds from the throughput since {@link #start()}. A segment which has not written anything
+   * yet is considered the slowest.
+   */
+  synchronized long getTimeLeft() {
+    long written = mPosition - mStartPosition;
+    if (mStartedAt == 0 || written <= 0) {
+      return Long.MAX_VALUE;
+    }
+    return (long) ((double) getRemaining() * (System.nanoTime() - mStartedAt) / written);
+  }
+
+  void advance(long count) {
+    mPosition += count;
+  }
+
+  /**
+   * Binds this segment of the given task to the parameters of a statement which lists {@link #COLUMNS} first.
+   */
+  void bind(SQLiteStatement statement, long taskId) {
+    statement.bindLong(1, taskId);
+    statement.bindLong(2, mIndex);
+    statement.bindLong(3, mStart);
+    statement.bindLong(4, mEnd);
+    statement.bindLong(5, mPosition);
+  }
+
+  boolean isCompleted() {
+    return mEnd >= 0 && mPosition >= mEnd;
+  }
+
+  /**
+   * Lets the reader read up to max bytes at from, unless the end comes first. Bytes reserved this way are never given away by
+   * {@link #split(int, long)}.
+   *
+   * @return the number of bytes to read, 0 once the end is reached.
+   */
+  synchronized int reserve(long from, int max) {
+    long length = mEnd < 0 ? max : Math.max(0, Math.min(max, mEnd - from));
+    mReserved = Math.max(mReserved, from + length);
+    return (int) length;
+  }
+
+  /**
+   * Gives the second half of the bytes which are neither written nor reserved to a new segment and ends this one there.
+   *
+   * @return the new segment, or null if either half would be smaller than minSize or the end is unknown.
+   */
+  synchronized Segment split(int index, long minSize) {
+    long from = Math.max(mReserved, mPosition);
+    if (mEnd < 0 || mEnd - from < 2 * Math.max(1, minSize)) {
+      return null;
+    }
+    long middle = from + (mEnd - from) / 2;
+    Segment segment = new Segment(index, middle, mEnd, middle);
+    mEnd = middle;
+    return segment;
+  }
+
+  /**
+   * Starts measuring the throughput of the connection which writes this segment.
+   */
+  synchronized void start() {
+    mStartedAt = System.nanoTime();
+    mStartPosition = mPosition;
+  }
+
+  interface Fields {
+
+    String END = "end_offset";
+    String INDEX = "idx";
+    String POSITION = "position";
+    String START = "start_offset";
+    String TASK_ID = "task_id";
+  }
+}
@@ -16,21 +16,30 @@
 
 package me.henrytao.downloadmanager.internal;
 
-import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.util.LruCache;
+import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import me.henrytao.downloadmanager.DownloadManager;
 import me.henrytao.downloadmanager.Request;
@@ -45,101 +54,410 @@ public class Storage {
 
   private static final String DATABASE_NAME = "download-manager.db";
 
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 10;
+
+  /**
+   * Longest time a change of a task is kept in memory only.
+   */
+  private static final long FLUSH_DELAY_IN_MILLISECONDS = 200;
+
+  /**
+   * Delay before writing again the changes of a flush which failed.
+   */
+  private static final long FLUSH_RETRY_DELAY_IN_MILLISECONDS = 2000;
 
   private static final String PREFERENCE_NAME = "download_manager";
 
   private static final String PREF_TASK_COUNTER = "PREF_TASK_COUNTER";
 
+  /**
+   * Number of task ids reserved in the database at once.
+   */
+  private static final int TASK_ID_BLOCK_SIZE = 1000;
+
+  private static final String TASK_SEQUENCE = "task";
+
   private static Logger log() {
     return DownloadManager.getInstance().getLogger();
   }
 
   private final DbHelper mDbHelper;
 
+  private final Set<Long> mDirty = new HashSet<>();
+
+  private final ScheduledExecutorService mFlushExecutor;
+
+  private final Object mFlushLock = new Object();
+
   private final SharedPreferences mPreferences;
 
+  /**
+   * Bytes written by each stored segment of the tasks in memory, by segment index, as of their last checkpoint.
+   */
+  private final ConcurrentMap<Long, Map<Integer, Long>> mSegmentBytes = new ConcurrentHashMap<>();
+
   private final TaskCache mTaskCache;
 
-  private final AtomicLong mTaskCounter;
+  private final Map<Long, Task> mTasks = new ConcurrentHashMap<>();
+
+  private boolean mFlushScheduled;
+
+  private long mLastTaskId;
+
+  private boolean mLoaded;
+
+  private long mNextTaskId;
 
   public Storage(Context context) {
     context = context.getApplicationContext();
     mDbHelper = new DbHelper(context);
     mPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
-    mTaskCounter = new AtomicLong(mPreferences.getLong(PREF_TASK_COUNTER, 0));
     mTaskCache = new TaskCache(mDbHelper);
+    mFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * @return the number of tasks in the given state, read from the state index.
+   */
+  public long count(Task.State state) {
+    flush();
+    return mDbHelper.count(state);
   }
 
-  public synchronized void enqueue(Request request) {
-    Task task = Task.create(request);
-    if (mDbHelper.insert(task)) {
-      addToCache(task);
+  /**
+   * Writes the task of the request before it returns, the job scheduled for it may outlive the process.
+   */
+  public void enqueue(Request request) {
+    // a recycled id must not resume from the ranges of the task it overwrites
+    mDbHelper.removeSegments(request.getId());
+    mSegmentBytes.remove(request.getId());
+    put(Task.create(request));
+    flush();
+  }
+
+  /**
+   * Writes the tasks of all requests in one transaction before it returns.
+   */
+  public void enqueueAll(List<Request> requests) {
+    List<Long> ids = new ArrayList<>();
+    for (Request request : requests) {
+      ids.add(request.getId());
     }
+    mDbHelper.removeSegments(ids);
+    for (long id : ids) {
+      mSegmentBytes.remove(id);
+    }
+    synchronized (this) {
+      for (Request request : requests) {
+        put(Task.create(request));
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Active tasks and tasks with unwritten changes are read from memory, the others from a small cache of the database.
+   */
+  public Task find(long id) {
+    Task task = mTasks.get(id);
+    return task != null ? task : mTaskCache.get(id);
   }
 
-  public synchronized Task find(long id) {
-    return mTaskCache.get(id);
+  @Nullable
+  public Task find(String tag) {
+    flush();
+    return getLatest(mDbHelper.find(tag));
   }
 
+  /**
+   * @return the latest task of uri in the given state.
+   */
   @Nullable
-  public synchronized Task find(String tag) {
-    return mDbHelper.find(tag);
+  public Task find(Uri uri, Task.State state) {
+    flush();
+    return getLatest(mDbHelper.find(uri, state));
+  }
+
+  @NonNull
+  public List<Task> findAll(String tag) {
+    flush();
+    return getLatest(mDbHelper.findAll(tag));
   }
 
   @NonNull
-  public synchronized List<Task> findAll(String tag) {
-    return mDbHelper.findAll(tag);
-  }
-
-  @SuppressLint("CommitPrefEdits")
-  public synchronized long getNextTaskId() {
-    long id = mTaskCounter.incrementAndGet();
-    if (id < 0) {
-      /*
-       * An overflow occurred. It'll happen rarely, but just in case reset the ID and start from scratch.
-       * Existing jobs will be treated as orphaned and will be overwritten.
-       */
-      id = 1;
-      mTaskCounter.set(id);
-    }
-    mPreferences.edit().putLong(PREF_TASK_COUNTER, id).commit();
+  public List<Task> findAll(Task.State state) {
+    if (state == Task.State.ACTIVE) {
+      // every active task lives in memory once the active rows are loaded
+      load();
+      List<Task> tasks = new ArrayList<>();
+      for (Task task : mTasks.values()) {
+        if (task.isActive()) {
+          tasks.add(task);
+        }
+      }
+      Collections.sort(tasks, (left, right) -> Long.compare(left.getId(), right.getId()));
+      return tasks;
+    }
+    flush();
+    return getLatest(mDbHelper.findAll(state));
+  }
+
+  /**
+   * Pages through the tasks of a state in enqueue order, e.g. the history of succeeded tasks, without loading all of them.
+   *
+   * @param afterId id of the last task of the previous page, 0 for the first page.
+   */
+  @NonNull
+  public List<Task> findAll(Task.State state, long afterId, int limit) {
+    flush();
+    return getLatest(mDbHelper.findAll(state, afterId, limit));
+  }
+
+  @NonNull
+  List<Segment> findSegments(long id) {
+    return mDbHelper.findSegments(id);
+  }
+
+  /**
+   * Writes the changed tasks in one transaction. Tasks which are no longer active leave memory once they are written.
+   */
+  void flush() {
+    synchronized (mFlushLock) {
+      List<Task> tasks = new ArrayList<>();
+      synchronized (this) {
+        mFlushScheduled = false;
+        for (long id : mDirty) {
+          tasks.add(mTasks.get(id));
+        }
+        mDirty.clear();
+      }
+      if (tasks.isEmpty()) {
+        return;
+      }
+      boolean written = mDbHelper.update(tasks);
+      synchronized (this) {
+        if (!written) {
+          // kept in memory and written again later, the last change of a task may never be followed by another one
+          scheduleFlush(FLUSH_RETRY_DELAY_IN_MILLISECONDS);
+        }
+        for (Task task : tasks) {
+          if (!written) {
+            mDirty.add(task.getId());
+          } else if (!task.isActive() && !mDirty.contains(task.getId()) && mTasks.get(task.getId()) == task) {
+            mTasks.remove(task.getId());
+            mSegmentBytes.remove(task.getId());
+            mTaskCache.put(task.getId(), task);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Bytes read of the task as of its last checkpoint. The progress of the stored segments of a task in memory is kept in memory
+   * too, so reading it for an active task does not touch the database.
+   */
+  public long getBytesRead(Task task) {
+    if (task == null) {
+      return 0;
+    }
+    Map<Integer, Long> segments = task.getState() != Task.State.SUCCESS ? getSegmentBytes(task.getId()) : null;
+    if (segments == null || segments.isEmpty()) {
+      return task.getBytesRead();
+    }
+    long bytesRead = 0;
+    for (long bytes : segments.values()) {
+      bytesRead += bytes;
+    }
+    return bytesRead;
+  }
+
+  public long getNextTaskId() {
+    return getNextTaskIds(1);
+  }
+
+  /**
+   * Allocates count consecutive ids. They are taken from a block reserved in the database, which is written again only once the
+   * block runs out, so ids left in a block when the process dies are never used.
+   *
+   * @return the first id.
+   */
+  public synchronized long getNextTaskIds(int count) {
+    if (mNextTaskId == 0 || mNextTaskId + count - 1 > mLastTaskId) {
+      int size = Math.max(TASK_ID_BLOCK_SIZE, count);
+      // ids given before the sequence table existed were counted in the preferences
+      mNextTaskId = mDbHelper.reserve(TASK_SEQUENCE, size, mPreferences.getLong(PREF_TASK_COUNTER, 0));
+      if (mNextTaskId < 0) {
+        mNextTaskId = 0;
+        throw new IllegalStateException("Could not reserve task ids");
+      }
+      mLastTaskId = mNextTaskId + size - 1;
+    }
+    long id = mNextTaskId;
+    mNextTaskId += count;
     return id;
   }
 
   public synchronized void increaseRetryCount(long id) {
-    if (mDbHelper.increaseRetryCount(id)) {
-      updateCache(id);
+    Task task = copy(id);
+    if (task == null) {
+      return;
+    }
+    if (!task.isForced() && task.getRetryCount() >= task.getMaxRetry()) {
+      if (task.getState() != Task.State.OUT_OF_RETRY_COUNT) {
+        task.setState(Task.State.OUT_OF_RETRY_COUNT);
+        put(task);
+      }
+    } else {
+      task.setRetryCount(task.getRetryCount() + 1);
+      put(task);
+    }
+  }
+
+  void removeSegments(long id) {
+    mDbHelper.removeSegments(id);
+    track(id, Collections.<Segment>emptyList());
+  }
+
+  /**
+   * Stores the new end of segment and the segment which took over the rest of it.
+   */
+  void split(long id, Segment segment, Segment created) {
+    if (mDbHelper.split(id, segment, created)) {
+      track(id, created);
     }
   }
 
-  public void update(long id, long contentLength, String md5) {
-    if (mDbHelper.update(id, contentLength, md5)) {
-      updateCache(id);
+  void update(long id, List<Segment> segments) {
+    if (mDbHelper.update(id, segments)) {
+      track(id, segments);
     }
   }
 
-  public void update(long id, Task.State state) {
-    if (mDbHelper.update(id, state)) {
-      updateCache(id);
+  void update(long id, Segment segment) {
+    if (mDbHelper.update(id, segment)) {
+      track(id, segment);
     }
   }
 
-  public void update(long id, Uri destUri) {
-    if (mDbHelper.update(id, destUri)) {
-      updateCache(id);
+  synchronized void update(long id, Md5 md5) {
+    Task task = copy(id);
+    if (task != null) {
+      task.setMd5State(md5 != null ? md5.getState() : null);
+      put(task);
     }
   }
 
-  private void addToCache(Task task) {
+  public synchronized void update(long id, long contentLength, String md5, String validator) {
+    Task task = copy(id);
     if (task != null) {
-      mTaskCache.put(task.getId(), task);
+      task.setContentLength(contentLength);
+      task.setMd5(md5);
+      task.setValidator(validator);
+      put(task);
+    }
+  }
+
+  public synchronized void update(long id, Task.State state) {
+    Task task = copy(id);
+    if (task != null) {
+      task.setState(state);
+      put(task);
+    }
+  }
+
+  public synchronized void update(long id, Uri destUri) {
+    Task task = copy(id);
+    if (task != null) {
+      task.setDestUri(destUri);
+      put(task);
+    }
+  }
+
+  /**
+   * Changes are made on a copy, so the tasks already handed out keep the values they were read with.
+   */
+  private Task copy(long id) {
+    Task task = find(id);
+    return task != null ? task.copy() : null;
+  }
+
+  private Task getLatest(Task task) {
+    Task latest = task != null ? mTasks.get(task.getId()) : null;
+    return latest != null ? latest : task;
+  }
+
+  private List<Task> getLatest(List<Task> tasks) {
+    for (int i = 0; i < tasks.size(); i++) {
+      tasks.set(i, getLatest(tasks.get(i)));
+    }
+    return tasks;
+  }
+
+  /**
+   * @return bytes written by each stored segment of the task, read from the database only once for a task in memory.
+   */
+  private Map<Integer, Long> getSegmentBytes(long id) {
+    Map<Integer, Long> segments = mSegmentBytes.get(id);
+    if (segments != null) {
+      return segments;
+    }
+    segments = toSegmentBytes(mDbHelper.findSegments(id));
+    if (mTasks.containsKey(id)) {
+      Map<Integer, Long> tracked = mSegmentBytes.putIfAbsent(id, segments);
+      segments = tracked != null ? tracked : segments;
+    }
+    return segments;
+  }
+
+  private synchronized void load() {
+    if (mLoaded) {
+      return;
+    }
+    for (Task task : mDbHelper.findAll(Task.State.ACTIVE)) {
+      // a change made before loading is newer than the row
+      if (!mTasks.containsKey(task.getId())) {
+        mTasks.put(task.getId(), task);
+      }
     }
+    mLoaded = true;
+  }
+
+  private synchronized void put(Task task) {
+    mTasks.put(task.getId(), task);
+    mTaskCache.remove(task.getId());
+    mDirty.add(task.getId());
+    scheduleFlush(FLUSH_DELAY_IN_MILLISECONDS);
   }
 
-  private void updateCache(long id) {
-    mTaskCache.remove(id);
-    addToCache(mDbHelper.find(id));
+  private synchronized void scheduleFlush(long delayInMilliseconds) {
+    if (!mFlushScheduled) {
+      mFlushScheduled = true;
+      mFlushExecutor.schedule(this::flush, delayInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private Map<Integer, Long> toSegmentBytes(List<Segment> segments) {
+    Map<Integer, Long> result = new ConcurrentHashMap<>();
+    for (Segment segment : segments) {
+      result.put(segment.getIndex(), segment.getPosition() - segment.getStart());
+    }
+    return result;
+  }
+
+  private void track(long id, List<Segment> segments) {
+    if (mTasks.containsKey(id)) {
+      mSegmentBytes.put(id, toSegmentBytes(segments));
+    } else {
+      mSegmentBytes.remove(id);
+    }
+  }
+
+  private void track(long id, Segment segment) {
+    Map<Integer, Long> segments = mSegmentBytes.get(id);
+    if (segments != null) {
+      segments.put(segment.getIndex(), segment.getPosition() - segment.getStart());
+    }
   }
 
   private static class DbHelper extends SQLiteOpenHelper {
@@ -150,7 +468,48 @@ public class Storage {
 
     private static final String C_TEXT = " TEXT ";
 
-    private SQLiteDatabase mDb;
+    private static final String SEQUENCE_NAME = "name";
+
+    private static final String SEQUENCE_TABLE = "sequence";
+
+    private static final String SEQUENCE_VALUE = "value";
+
+    /**
+     * Schema changes in version order, the one at index i moves the database from version i + 1 to version i + 2. A new version
+     * appends its migration here and bumps the database version.
+     */
+    private final Migration[] mMigrations = new Migration[]{
+        // 2
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.SEGMENT_COUNT + C_INTEGER + " DEFAULT 0"),
+        // 3
+        this::createSegmentTable,
+        // 4
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.MD5_STATE + C_TEXT),
+        // 5
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.VALIDATOR + C_TEXT),
+        // 6
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.MIRRORS + C_TEXT),
+        // 7
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.CHECKSUM + C_TEXT),
+        // 8
+        db -> db.execSQL("ALTER TABLE " + Task.NAME + " ADD COLUMN " + Task.Fields.REFRESH + C_INTEGER + " DEFAULT 0"),
+        // 9
+        this::createSequenceTable,
+        // 10, an index also orders its rows by _id, which is the rowid, so state covers (state, _id)
+        db -> {
+          createIndex(db, Task.Fields.TAG);
+          createIndex(db, Task.Fields.STATE);
+          createIndex(db, Task.Fields.URI, Task.Fields.STATE);
+        }
+    };
+
+    private volatile SQLiteDatabase mDb;
+
+    private SQLiteStatement mInsertSegment;
+
+    private SQLiteStatement mReplaceTask;
+
+    private SQLiteStatement mUpdatePosition;
 
     DbHelper(Context context) {
       super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
@@ -158,6 +517,7 @@ public class Storage {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+      // the schema of version 1, the migrations bring it to the current version
       db.execSQL("CREATE TABLE IF NOT EXISTS " + Task.NAME + " ( "
           + Task.Fields.ID + C_INTEGER + " PRIMARY KEY " + C_COMMA
           + Task.Fields.TAG + C_TEXT + C_COMMA
@@ -172,11 +532,33 @@ public class Storage {
           + Task.Fields.CONTENT_LENGTH + C_INTEGER + C_COMMA
           + Task.Fields.MD5 + C_TEXT
           + " )");
+      onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-      // do nothing
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      for (int version = oldVersion + 1; version <= newVersion; version++) {
+        mMigrations[version - 2].migrate(db);
+      }
+    }
+
+    /**
+     * @return the number of tasks in the given state.
+     */
+    long count(Task.State state) {
+      Cursor cursor = null;
+      try {
+        cursor = db().rawQuery("SELECT COUNT(*) FROM " + Task.NAME + " WHERE " + Task.Fields.STATE + " = ?",
+            new String[]{String.valueOf(state.toInt())});
+        return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+      } catch (Exception e) {
+        log().e(e, "Could not count state %s", state);
+        return 0;
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
     }
 
     Task find(String tag) {
@@ -211,116 +593,299 @@ public class Storage {
       return task;
     }
 
+    Task find(Uri uri, Task.State state) {
+      Task task = null;
+      Cursor cursor = null;
+      try {
+        cursor = db().query(Task.NAME, null, Task.Fields.URI + " = ? AND " + Task.Fields.STATE + " = ?",
+            new String[]{uri.toString(), String.valueOf(state.toInt())}, null, null, Task.Fields.ID + " DESC", "1");
+        task = Task.create(cursor, true);
+      } catch (Exception e) {
+        log().e(e, "Could not find uri %s", uri);
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+      return task;
+    }
+
     List<Task> findAll(String tag) {
-      List<Task> tasks = new ArrayList<>();
+      return findAll(Task.Fields.TAG + " = ?", new String[]{tag}, Task.Fields.ID + " DESC");
+    }
+
+    List<Task> findAll(Task.State state) {
+      return findAll(Task.Fields.STATE + " = ?", new String[]{String.valueOf(state.toInt())}, Task.Fields.ID + " ASC");
+    }
+
+    List<Task> findAll(Task.State state, long afterId, int limit) {
+      return findAll(Task.Fields.STATE + " = ? AND " + Task.Fields.ID + " > ?",
+          new String[]{String.valueOf(state.toInt()), String.valueOf(afterId)}, Task.Fields.ID + " ASC", String.valueOf(limit));
+    }
+
+    List<Segment> findSegments(long id) {
+      List<Segment> segments = new ArrayList<>();
       Cursor cursor = null;
       try {
-        cursor = db().query(Task.NAME, null, Task.Fields.TAG + " = ?", new String[]{tag}, null, null, Task.Fields.ID + " DESC");
+        cursor = db().query(Segment.NAME, null, Segment.Fields.TASK_ID + " = ?", new String[]{String.valueOf(id)}, null, null,
+            Segment.Fields.START + " ASC");
         if (cursor != null && !cursor.isClosed() && cursor.moveToFirst()) {
           do {
-            tasks.add(Task.create(cursor, false));
+            segments.add(Segment.create(cursor));
           } while (cursor.moveToNext());
         }
       } catch (Exception e) {
-        log().e(e, "Could not find tag %s", tag);
+        log().e(e, "Could not find segments of id %d", id);
       } finally {
         if (cursor != null) {
           cursor.close();
         }
       }
-      return tasks;
+      return segments;
     }
 
-    boolean increaseRetryCount(long id) {
+    boolean removeSegments(long id) {
       try {
-        Task task = find(id);
-        ContentValues values = new ContentValues();
-        if (!task.isForced() && task.getRetryCount() >= task.getMaxRetry()) {
-          if (task.getState() != Task.State.OUT_OF_RETRY_COUNT) {
-            values.put(Task.Fields.STATE, Task.State.OUT_OF_RETRY_COUNT.toInt());
-          }
-        } else {
-          values.put(Task.Fields.RETRY_COUNT, task.getRetryCount() + 1);
-        }
-        if (values.size() == 0) {
-          return false;
-        }
-        db().update(Task.NAME, values, Task.Fields.ID + " = ?", new String[]{String.valueOf(id)});
+        db().delete(Segment.NAME, Segment.Fields.TASK_ID + " = ?", new String[]{String.valueOf(id)});
       } catch (Exception e) {
-        log().e(e, "Could not increase retry count of id %d", id);
+        log().e(e, "Could not delete segments of task %d", id);
         return false;
       }
       return true;
     }
 
-    boolean insert(Task task) {
+    boolean removeSegments(List<Long> ids) {
+      SQLiteDatabase db = db();
+      db.beginTransaction();
       try {
-        remove(task.getId());
-        db().insert(Task.NAME, null, task.toContentValues());
+        for (long id : ids) {
+          db.delete(Segment.NAME, Segment.Fields.TASK_ID + " = ?", new String[]{String.valueOf(id)});
+        }
+        db.setTransactionSuccessful();
       } catch (Exception e) {
-        log().e(e, "Could not insert task %s", task);
+        log().e(e, "Could not delete segments of %d tasks", ids.size());
         return false;
+      } finally {
+        db.endTransaction();
       }
       return true;
     }
 
-    boolean remove(long id) {
+    /**
+     * Moves the sequence of the given name past count values. A sequence which does not exist yet starts after floor and after
+     * every task id.
+     *
+     * @return the first value of the reserved range, -1 if it could not be stored.
+     */
+    long reserve(String name, int count, long floor) {
+      SQLiteDatabase db = db();
+      Cursor cursor = null;
+      db.beginTransaction();
       try {
-        db().delete(Task.NAME, Task.Fields.ID + " = ?", new String[]{String.valueOf(id)});
+        long last;
+        cursor = db.query(SEQUENCE_TABLE, new String[]{SEQUENCE_VALUE}, SEQUENCE_NAME + " = ?", new String[]{name}, null, null, null);
+        if (cursor.moveToFirst()) {
+          last = cursor.getLong(0);
+        } else {
+          cursor.close();
+          cursor = db.rawQuery("SELECT MAX(" + Task.Fields.ID + ") FROM " + Task.NAME, null);
+          last = Math.max(floor, cursor.moveToFirst() ? cursor.getLong(0) : 0);
+        }
+        long first = last + 1;
+        if (first < 0 || first + count - 1 < 0) {
+          /*
+           * An overflow occurred. It'll happen rarely, but just in case reset the ID and start from scratch.
+           * Existing jobs will be treated as orphaned and will be overwritten.
+           */
+          first = 1;
+        }
+        ContentValues values = new ContentValues();
+        values.put(SEQUENCE_NAME, name);
+        values.put(SEQUENCE_VALUE, first + count - 1);
+        db.insertWithOnConflict(SEQUENCE_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        db.setTransactionSuccessful();
+        return first;
       } catch (Exception e) {
-        log().e(e, "Could not delete task %d", id);
-        return false;
+        log().e(e, "Could not reserve %d values of sequence %s", count, name);
+        return -1;
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+        db.endTransaction();
+      }
+    }
+
+    boolean split(long id, Segment segment, Segment created) {
+      SQLiteDatabase db = db();
+      synchronized (mInsertSegment) {
+        db.beginTransaction();
+        try {
+          ContentValues values = new ContentValues();
+          values.put(Segment.Fields.END, created.getStart());
+          db.update(Segment.NAME, values, Segment.Fields.TASK_ID + " = ? AND " + Segment.Fields.INDEX + " = ?",
+              new String[]{String.valueOf(id), String.valueOf(segment.getIndex())});
+          created.bind(mInsertSegment, id);
+          mInsertSegment.executeInsert();
+          db.setTransactionSuccessful();
+        } catch (Exception e) {
+          log().e(e, "Could not split segment %d of id %d", segment.getIndex(), id);
+          return false;
+        } finally {
+          db.endTransaction();
+        }
       }
       return true;
     }
 
-    boolean update(long id, Uri destUri) {
-      try {
-        ContentValues values = new ContentValues();
-        values.put(Task.Fields.DEST_URI, destUri.toString());
-        db().update(Task.NAME, values, Task.Fields.ID + " = ?", new String[]{String.valueOf(id)});
-      } catch (Exception e) {
-        log().e(e, "Could not update destUri of id %d", id);
-        return false;
+    /**
+     * Replaces the rows of the given tasks, inserting the new ones.
+     */
+    boolean update(List<Task> tasks) {
+      SQLiteDatabase db = db();
+      synchronized (mReplaceTask) {
+        db.beginTransaction();
+        try {
+          for (Task task : tasks) {
+            task.bind(mReplaceTask);
+            mReplaceTask.executeInsert();
+          }
+          db.setTransactionSuccessful();
+        } catch (Exception e) {
+          log().e(e, "Could not update %d tasks", tasks.size());
+          return false;
+        } finally {
+          db.endTransaction();
+        }
       }
       return true;
     }
 
-    boolean update(long id, Task.State state) {
-      try {
-        ContentValues values = new ContentValues();
-        values.put(Task.Fields.STATE, state.toInt());
-        db().update(Task.NAME, values, Task.Fields.ID + " = ?", new String[]{String.valueOf(id)});
-      } catch (Exception e) {
-        log().e(e, "Could not update state of id %d", id);
-        return false;
+    boolean update(long id, List<Segment> segments) {
+      SQLiteDatabase db = db();
+      synchronized (mInsertSegment) {
+        db.beginTransaction();
+        try {
+          db.delete(Segment.NAME, Segment.Fields.TASK_ID + " = ?", new String[]{String.valueOf(id)});
+          for (Segment segment : segments) {
+            segment.bind(mInsertSegment, id);
+            mInsertSegment.executeInsert();
+          }
+          db.setTransactionSuccessful();
+        } catch (Exception e) {
+          log().e(e, "Could not update segments of id %d", id);
+          return false;
+        } finally {
+          db.endTransaction();
+        }
       }
       return true;
     }
 
-    boolean update(long id, long contentLength, String md5) {
-      try {
-        ContentValues values = new ContentValues();
-        values.put(Task.Fields.CONTENT_LENGTH, contentLength);
-        values.put(Task.Fields.MD5, md5);
-        db().update(Task.NAME, values, Task.Fields.ID + " = ?", new String[]{String.valueOf(id)});
-      } catch (Exception e) {
-        log().e(e, "Could not update contentLength and md5 of id %d", id);
-        return false;
+    /**
+     * Checkpoints the position of a segment. It runs at every checkpoint of every running segment, so it goes through a precompiled
+     * statement.
+     */
+    boolean update(long id, Segment segment) {
+      db();
+      synchronized (mUpdatePosition) {
+        try {
+          mUpdatePosition.bindLong(1, segment.getPosition());
+          mUpdatePosition.bindLong(2, id);
+          mUpdatePosition.bindLong(3, segment.getIndex());
+          mUpdatePosition.executeUpdateDelete();
+        } catch (Exception e) {
+          log().e(e, "Could not update segment %d of id %d", segment.getIndex(), id);
+          return false;
+        }
       }
       return true;
     }
 
+    private void createIndex(SQLiteDatabase db, String... columns) {
+      StringBuilder name = new StringBuilder(Task.NAME);
+      for (String column : columns) {
+        name.append("_").append(column);
+      }
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON " + Task.NAME + " ( " + TextUtils.join(C_COMMA, columns) + " )");
+    }
+
+    private void createSegmentTable(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + Segment.NAME + " ( "
+          + Segment.Fields.TASK_ID + C_INTEGER + C_COMMA
+          + Segment.Fields.INDEX + C_INTEGER + C_COMMA
+          + Segment.Fields.START + C_INTEGER + C_COMMA
+          + Segment.Fields.END + C_INTEGER + C_COMMA
+          + Segment.Fields.POSITION + C_INTEGER + C_COMMA
+          + " PRIMARY KEY ( " + Segment.Fields.TASK_ID + C_COMMA + Segment.Fields.INDEX + " )"
+          + " )");
+    }
+
+    private void createSequenceTable(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + SEQUENCE_TABLE + " ( "
+          + SEQUENCE_NAME + C_TEXT + " PRIMARY KEY " + C_COMMA
+          + SEQUENCE_VALUE + C_INTEGER
+          + " )");
+    }
+
+    /**
+     * Opens the database and compiles the statements of the write paths once, a statement is only used while holding its lock and
+     * a transaction which uses one takes that lock first so two writers never wait on each other.
+     */
     private SQLiteDatabase db() {
       if (mDb == null) {
         synchronized (DbHelper.class) {
           if (mDb == null) {
-            mDb = getWritableDatabase();
+            SQLiteDatabase db = getWritableDatabase();
+            mInsertSegment = db.compileStatement(replace(Segment.NAME, Segment.COLUMNS));
+            mReplaceTask = db.compileStatement(replace(Task.NAME, Task.COLUMNS));
+            mUpdatePosition = db.compileStatement("UPDATE " + Segment.NAME + " SET " + Segment.Fields.POSITION + " = ? WHERE "
+                + Segment.Fields.TASK_ID + " = ? AND " + Segment.Fields.INDEX + " = ?");
+            // published last, mDb is volatile so a thread which sees it also sees the statements
+            mDb = db;
           }
         }
       }
       return mDb;
     }
+
+    private List<Task> findAll(String selection, String[] selectionArgs, String orderBy) {
+      return findAll(selection, selectionArgs, orderBy, null);
+    }
+
+    private List<Task> findAll(String selection, String[] selectionArgs, String orderBy, String limit) {
+      List<Task> tasks = new ArrayList<>();
+      Cursor cursor = null;
+      try {
+        cursor = db().query(Task.NAME, null, selection, selectionArgs, null, null, orderBy, limit);
+        if (cursor != null && !cursor.isClosed() && cursor.moveToFirst()) {
+          Task.Mapper mapper = new Task.Mapper(cursor);
+          do {
+            tasks.add(mapper.map(cursor));
+          } while (cursor.moveToNext());
+        }
+      } catch (Exception e) {
+        log().e(e, "Could not find tasks where %s", selection);
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+      return tasks;
+    }
+
+    private String replace(String table, String[] columns) {
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < columns.length; i++) {
+        values.append(i > 0 ? C_COMMA : "").append("?");
+      }
+      return "INSERT OR REPLACE INTO " + table + " ( " + TextUtils.join(C_COMMA, columns) + " ) VALUES ( " + values + " )";
+    }
+
+    private interface Migration {
+
+      void migrate(SQLiteDatabase db);
+    }
   }
 
   private static class TaskCache extends LruCache<Long, Task> {
@@ -16,12 +16,15 @@
 
 package me.henrytao.downloadmanager.internal;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.SparseArray;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import me.henrytao.downloadmanager.Request;
 
@@ -30,34 +33,66 @@ import me.henrytao.downloadmanager.Request;
  */
 public class Task {
 
+  /**
+   * Columns in the order {@link #bind(SQLiteStatement)} binds them.
+   */
+  static final String[] COLUMNS = new String[]{
+      Fields.ID, Fields.TAG, Fields.URI, Fields.TITLE, Fields.DESCRIPTION, Fields.DEST_URI, Fields.TEMP_URI, Fields.MAX_RETRY,
+      Fields.RETRY_COUNT, Fields.STATE, Fields.CONTENT_LENGTH, Fields.MD5, Fields.MD5_STATE, Fields.SEGMENT_COUNT, Fields.VALIDATOR,
+      Fields.MIRRORS, Fields.CHECKSUM, Fields.REFRESH
+  };
+
   static final String NAME = "task";
 
   static Task create(Cursor cursor, boolean shouldMoveToFirst) {
     if (cursor == null || cursor.isClosed() || (shouldMoveToFirst && !cursor.moveToFirst())) {
       return null;
     }
-    return new Task(
-        cursor.getLong(cursor.getColumnIndex(Fields.ID)),
-        cursor.getString(cursor.getColumnIndex(Fields.TAG)),
-        Uri.parse(cursor.getString(cursor.getColumnIndex(Fields.URI))),
-        cursor.getString(cursor.getColumnIndex(Fields.TITLE)),
-        cursor.getString(cursor.getColumnIndex(Fields.DESCRIPTION)),
-        Uri.parse(cursor.getString(cursor.getColumnIndex(Fields.DEST_URI))),
-        Uri.parse(cursor.getString(cursor.getColumnIndex(Fields.TEMP_URI))),
-        cursor.getInt(cursor.getColumnIndex(Fields.MAX_RETRY)),
-        cursor.getInt(cursor.getColumnIndex(Fields.RETRY_COUNT)),
-        State.from(cursor.getInt(cursor.getColumnIndex(Fields.STATE))),
-        cursor.getLong(cursor.getColumnIndex(Fields.CONTENT_LENGTH)),
-        cursor.getString(cursor.getColumnIndex(Fields.MD5))
-    );
+    return new Mapper(cursor).map(cursor);
   }
 
   static Task create(Request request) {
     return new Task(request.getId(), request.getTag(), request.getUri(), request.getTitle(), request.getDescription(), request.getDestUri(),
-        request.getTempUri(), request.getRetry(), 0, State.ACTIVE, 0, null);
+        request.getTempUri(), request.getRetry(), 0, State.ACTIVE, 0, null, request.getSegmentCount(), null, null, request.getMirrors(),
+        request.getChecksum(), request.isRefresh());
+  }
+
+  private static void bind(SQLiteStatement statement, int index, String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+
+  private static String joinMirrors(List<Uri> mirrors) {
+    if (mirrors.isEmpty()) {
+      return null;
+    }
+    StringBuilder builder = new StringBuilder();
+    for (Uri mirror : mirrors) {
+      builder.append(builder.length() > 0 ? "\n" : "").append(mirror.toString());
+    }
+    return builder.toString();
+  }
+
+  private static List<Uri> parseMirrors(String mirrors) {
+    List<Uri> result = new ArrayList<>();
+    if (mirrors != null) {
+      for (String mirror : mirrors.split("\n")) {
+        if (!mirror.isEmpty()) {
+          result.add(Uri.parse(mirror));
+        }
+      }
+    }
+    return Collections.unmodifiableList(result);
   }
 
-  private final String mMd5;
+  private final String mChecksum;
+
+  private final List<Uri> mMirrors;
+
+  private final boolean mRefresh;
 
   private long mContentLength;
 
@@ -69,8 +104,14 @@ public class Task {
 
   private int mMaxRetry;
 
+  private String mMd5;
+
+  private String mMd5State;
+
   private int mRetryCount;
 
+  private int mSegmentCount;
+
   private State mState;
 
   private String mTag;
@@ -81,8 +122,11 @@ public class Task {
 
   private Uri mUri;
 
+  private String mValidator;
+
   protected Task(long id, String tag, Uri uri, String title, String description, Uri destUri, Uri tempUri, int maxRetry, int retryCount,
-      State state, long contentLength, String md5) {
+      State state, long contentLength, String md5, int segmentCount, String md5State, String validator,
+      List<Uri> mirrors, String checksum, boolean refresh) {
     mId = id;
     mTag = tag;
     mUri = uri;
@@ -95,6 +139,12 @@ public class Task {
     mState = state;
     mContentLength = contentLength;
     mMd5 = md5;
+    mSegmentCount = segmentCount;
+    mMd5State = md5State;
+    mValidator = validator;
+    mMirrors = mirrors != null ? mirrors : Collections.<Uri>emptyList();
+    mChecksum = checksum;
+    mRefresh = refresh;
   }
 
   @Override
@@ -118,9 +168,27 @@ public class Task {
     if (mRetryCount != task.mRetryCount) {
       return false;
     }
+    if (mSegmentCount != task.mSegmentCount) {
+      return false;
+    }
+    if (mRefresh != task.mRefresh) {
+      return false;
+    }
     if (mMd5 != null ? !mMd5.equals(task.mMd5) : task.mMd5 != null) {
       return false;
     }
+    if (mMd5State != null ? !mMd5State.equals(task.mMd5State) : task.mMd5State != null) {
+      return false;
+    }
+    if (mValidator != null ? !mValidator.equals(task.mValidator) : task.mValidator != null) {
+      return false;
+    }
+    if (!mMirrors.equals(task.mMirrors)) {
+      return false;
+    }
+    if (mChecksum != null ? !mChecksum.equals(task.mChecksum) : task.mChecksum != null) {
+      return false;
+    }
     if (mDescription != null ? !mDescription.equals(task.mDescription) : task.mDescription != null) {
       return false;
     }
@@ -145,12 +213,18 @@ public class Task {
   @Override
   public int hashCode() {
     int result = mMd5 != null ? mMd5.hashCode() : 0;
+    result = 31 * result + (mMd5State != null ? mMd5State.hashCode() : 0);
+    result = 31 * result + (mValidator != null ? mValidator.hashCode() : 0);
+    result = 31 * result + mMirrors.hashCode();
+    result = 31 * result + (mChecksum != null ? mChecksum.hashCode() : 0);
+    result = 31 * result + (mRefresh ? 1 : 0);
     result = 31 * result + (int) (mContentLength ^ (mContentLength >>> 32));
     result = 31 * result + (mDescription != null ? mDescription.hashCode() : 0);
     result = 31 * result + mDestUri.hashCode();
     result = 31 * result + (int) (mId ^ (mId >>> 32));
     result = 31 * result + mMaxRetry;
     result = 31 * result + mRetryCount;
+    result = 31 * result + mSegmentCount;
     result = 31 * result + (mState != null ? mState.hashCode() : 0);
     result = 31 * result + (mTag != null ? mTag.hashCode() : 0);
     result = 31 * result + mTempUri.hashCode();
@@ -169,6 +243,10 @@ public class Task {
     return 0;
   }
 
+  public String getChecksum() {
+    return mChecksum;
+  }
+
   public long getContentLength() {
     return mContentLength;
   }
@@ -197,10 +275,22 @@ public class Task {
     return mMd5;
   }
 
+  public String getMd5State() {
+    return mMd5State;
+  }
+
+  public List<Uri> getMirrors() {
+    return mMirrors;
+  }
+
   public int getRetryCount() {
     return mRetryCount;
   }
 
+  public int getSegmentCount() {
+    return mSegmentCount;
+  }
+
   public State getState() {
     return mState;
   }
@@ -225,6 +315,13 @@ public class Task {
     return mUri;
   }
 
+  /**
+   * ETag or Last-Modified of the response which started the temp file, sent as If-Range when resuming it.
+   */
+  public String getValidator() {
+    return mValidator;
+  }
+
   public boolean isActive() {
     return getState() == State.ACTIVE;
   }
@@ -233,21 +330,157 @@ public class Task {
     return mMaxRetry < 0;
   }
 
-  public ContentValues toContentValues() {
-    ContentValues values = new ContentValues();
-    values.put(Fields.ID, mId);
-    values.put(Fields.TAG, mTag);
-    values.put(Fields.URI, mUri.toString());
-    values.put(Fields.TITLE, mTitle);
-    values.put(Fields.DESCRIPTION, mDescription);
-    values.put(Fields.DEST_URI, mDestUri.toString());
-    values.put(Fields.TEMP_URI, mTempUri.toString());
-    values.put(Fields.MAX_RETRY, mMaxRetry);
-    values.put(Fields.RETRY_COUNT, mRetryCount);
-    values.put(Fields.STATE, mState.toInt());
-    values.put(Fields.CONTENT_LENGTH, mContentLength);
-    values.put(Fields.MD5, mMd5);
-    return values;
+  public boolean isRefresh() {
+    return mRefresh;
+  }
+
+  /**
+   * Binds this task to the parameters of a statement which lists {@link #COLUMNS} first.
+   */
+  void bind(SQLiteStatement statement) {
+    statement.bindLong(1, mId);
+    bind(statement, 2, mTag);
+    bind(statement, 3, mUri.toString());
+    bind(statement, 4, mTitle);
+    bind(statement, 5, mDescription);
+    bind(statement, 6, mDestUri.toString());
+    bind(statement, 7, mTempUri.toString());
+    statement.bindLong(8, mMaxRetry);
+    statement.bindLong(9, mRetryCount);
+    statement.bindLong(10, mState.toInt());
+    statement.bindLong(11, mContentLength);
+    bind(statement, 12, mMd5);
+    bind(statement, 13, mMd5State);
+    statement.bindLong(14, mSegmentCount);
+    bind(statement, 15, mValidator);
+    bind(statement, 16, joinMirrors(mMirrors));
+    bind(statement, 17, mChecksum);
+    statement.bindLong(18, mRefresh ? 1 : 0);
+  }
+
+  /**
+   * @return a task equal to this one, which {@link Storage} changes before it replaces this one.
+   */
+  Task copy() {
+    return new Task(mId, mTag, mUri, mTitle, mDescription, mDestUri, mTempUri, mMaxRetry, mRetryCount, mState, mContentLength, mMd5,
+        mSegmentCount, mMd5State, mValidator, mMirrors, mChecksum, mRefresh);
+  }
+
+  void setContentLength(long contentLength) {
+    mContentLength = contentLength;
+  }
+
+  void setDestUri(Uri destUri) {
+    mDestUri = destUri;
+  }
+
+  void setMd5(String md5) {
+    mMd5 = md5;
+  }
+
+  void setMd5State(String md5State) {
+    mMd5State = md5State;
+  }
+
+  void setRetryCount(int retryCount) {
+    mRetryCount = retryCount;
+  }
+
+  void setState(State state) {
+    mState = state;
+  }
+
+  void setValidator(String validator) {
+    mValidator = validator;
+  }
+
+  /**
+   * Reads tasks from the rows of one cursor, looking the column indexes up once instead of for every row.
+   */
+  static class Mapper {
+
+    private final int checksum;
+
+    private final int contentLength;
+
+    private final int description;
+
+    private final int destUri;
+
+    private final int id;
+
+    private final int maxRetry;
+
+    private final int md5;
+
+    private final int md5State;
+
+    private final int mirrors;
+
+    private final int refresh;
+
+    private final int retryCount;
+
+    private final int segmentCount;
+
+    private final int state;
+
+    private final int tag;
+
+    private final int tempUri;
+
+    private final int title;
+
+    private final int uri;
+
+    private final int validator;
+
+    Mapper(Cursor cursor) {
+      checksum = cursor.getColumnIndex(Fields.CHECKSUM);
+      contentLength = cursor.getColumnIndex(Fields.CONTENT_LENGTH);
+      description = cursor.getColumnIndex(Fields.DESCRIPTION);
+      destUri = cursor.getColumnIndex(Fields.DEST_URI);
+      id = cursor.getColumnIndex(Fields.ID);
+      maxRetry = cursor.getColumnIndex(Fields.MAX_RETRY);
+      md5 = cursor.getColumnIndex(Fields.MD5);
+      md5State = cursor.getColumnIndex(Fields.MD5_STATE);
+      mirrors = cursor.getColumnIndex(Fields.MIRRORS);
+      refresh = cursor.getColumnIndex(Fields.REFRESH);
+      retryCount = cursor.getColumnIndex(Fields.RETRY_COUNT);
+      segmentCount = cursor.getColumnIndex(Fields.SEGMENT_COUNT);
+      state = cursor.getColumnIndex(Fields.STATE);
+      tag = cursor.getColumnIndex(Fields.TAG);
+      tempUri = cursor.getColumnIndex(Fields.TEMP_URI);
+      title = cursor.getColumnIndex(Fields.TITLE);
+      uri = cursor.getColumnIndex(Fields.URI);
+      validator = cursor.getColumnIndex(Fields.VALIDATOR);
+    }
+
+    /**
+     * @return the task of the row the cursor is at.
+     */
+    Task map(Cursor cursor) {
+      return new Task(
+          cursor.getLong(id),
+          cursor.getString(tag),
+          Uri.parse(cursor.getString(uri)),
+          cursor.getString(title),
+          cursor.getString(description),
+          Uri.parse(cursor.getString(destUri)),
+          Uri.parse(cursor.getString(tempUri)),
+          cursor.getInt(maxRetry),
+          cursor.getInt(retryCount),
+          State.from(cursor.getInt(state)),
+          cursor.getLong(contentLength),
+          cursor.getString(md5),
+          cursor.getInt(segmentCount),
+          cursor.getString(md5State),
+          cursor.getString(validator),
+          parseMirrors(cursor.getString(mirrors)),
+          cursor.getString(checksum),
+          cursor.getInt(refresh) == 1
+      );
+    }
   }
 
   public enum State {
@@ -281,17 +514,23 @@ public class Task {
 
   interface Fields {
 
+    String CHECKSUM = "checksum";
     String CONTENT_LENGTH = "content_length";
     String DESCRIPTION = "description";
     String DEST_URI = "dest_uri";
     String ID = "_id";
     String MAX_RETRY = "max_retry";
     String MD5 = "md5";
+    String MD5_STATE = "md5_state";
+    String MIRRORS = "mirrors";
+    String REFRESH = "refresh";
     String RETRY_COUNT = "retry_count";
+    String SEGMENT_COUNT = "segment_count";
     String STATE = "state";
     String TAG = "tag";
     String TEMP_URI = "temp_uri";
     String TITLE = "title";
     String URI = "uri";
+    String VALIDATOR = "validator";
   }
 }
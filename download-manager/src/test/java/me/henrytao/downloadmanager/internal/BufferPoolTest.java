@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testMaxSize() {
+    BufferPool pool = new BufferPool(4096);
+    byte[] first = pool.acquire(4096);
+    byte[] second = pool.acquire(4096);
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.getSize(), equalTo(4096L));
+    assertThat(pool.acquire(4096), sameInstance(first));
+    assertThat(pool.acquire(4096), not(sameInstance(second)));
+    assertThat(pool.getHitCount(), equalTo(1L));
+    assertThat(pool.getMissCount(), equalTo(3L));
+  }
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    byte[] buffer = pool.acquire(3000);
+    assertThat(buffer.length, equalTo(4096));
+    pool.release(buffer);
+    assertThat(pool.acquire(2049), sameInstance(buffer));
+    assertThat(pool.getSize(), equalTo(0L));
+    assertThat(pool.getHitCount(), equalTo(1L));
+    assertThat(pool.getMissCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(1024 * 1024);
+    pool.release(pool.acquire(2048));
+    assertThat(pool.acquire(4096).length, equalTo(4096));
+    assertThat(pool.acquire(1024).length, equalTo(1024));
+    assertThat(pool.getHitCount(), equalTo(0L));
+    assertThat(pool.getMissCount(), equalTo(3L));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BufferSizerTest {
+
+  private static final long TARGET = BufferSizer.TARGET_FILL_TIME_IN_NANOSECONDS;
+
+  @Test
+  public void testFixed() {
+    BufferSizer sizer = new BufferSizer(2048, 2048, 2048);
+    sizer.onChunk(2048, 0);
+    assertThat(sizer.get(), equalTo(2048));
+    sizer.onChunk(2048, TARGET * 10);
+    assertThat(sizer.get(), equalTo(2048));
+  }
+
+  @Test
+  public void testGrowUpToMax() {
+    BufferSizer sizer = new BufferSizer(2048, 1024, 5000);
+    sizer.onChunk(2048, TARGET / 4);
+    assertThat(sizer.get(), equalTo(4096));
+    sizer.onChunk(4096, TARGET / 4);
+    assertThat(sizer.get(), equalTo(5000));
+  }
+
+  @Test
+  public void testIgnorePartialChunk() {
+    BufferSizer sizer = new BufferSizer(2048, 1024, 8192);
+    sizer.onChunk(100, 0);
+    sizer.onChunk(-1, TARGET * 10);
+    assertThat(sizer.get(), equalTo(2048));
+  }
+
+  @Test
+  public void testKeepWithinTarget() {
+    BufferSizer sizer = new BufferSizer(2048, 1024, 8192);
+    sizer.onChunk(2048, TARGET * 3 / 4);
+    assertThat(sizer.get(), equalTo(2048));
+  }
+
+  @Test
+  public void testShrinkToThroughput() {
+    BufferSizer sizer = new BufferSizer(8192, 1024, 8192);
+    sizer.onChunk(8192, TARGET * 4);
+    assertThat(sizer.get(), equalTo(2048));
+    sizer.onChunk(2048, TARGET * 100);
+    assertThat(sizer.get(), equalTo(1024));
+  }
+}
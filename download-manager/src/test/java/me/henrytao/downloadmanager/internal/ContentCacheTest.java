@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ContentCacheTest {
+
+  private static final String FIRST = "0123456789abcdef0123456789abcdef";
+
+  private static final String SECOND = "fedcba9876543210fedcba9876543210";
+
+  private static final String THIRD = "00112233445566778899aabbccddeeff";
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void testGetKey() {
+    assertThat(ContentCache.getKey("\"0123456789ABCDEF0123456789ABCDEF\""), equalTo(FIRST));
+    assertThat(ContentCache.getKey("\"5d8f-54a0c3e7\""), nullValue());
+    assertThat(ContentCache.getKey(null), nullValue());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() throws IOException {
+    ContentCache cache = new ContentCache(mFolder.newFolder("cache"), 250);
+    cache.put(FIRST, createFile(100));
+    cache.put(SECOND, createFile(100));
+    assertThat(cache.get(FIRST), notNullValue());
+    cache.put(THIRD, createFile(100));
+    assertThat(cache.getSize(), equalTo(200L));
+    assertThat(cache.get(SECOND), nullValue());
+    assertThat(cache.get(FIRST).length(), equalTo(100L));
+    assertThat(cache.get(THIRD).length(), equalTo(100L));
+    assertThat(cache.getHitCount(), equalTo(3L));
+    assertThat(cache.getMissCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    File directory = mFolder.newFolder("cache");
+    new ContentCache(directory, 1000).put(FIRST, createFile(100));
+    ContentCache cache = new ContentCache(directory, 1000);
+    assertThat(cache.getSize(), equalTo(100L));
+    assertThat(cache.get(FIRST), notNullValue());
+  }
+
+  private File createFile(int length) throws IOException {
+    File file = mFolder.newFile();
+    FileOutputStream output = new FileOutputStream(file);
+    output.write(new byte[length]);
+    output.close();
+    return file;
+  }
+}
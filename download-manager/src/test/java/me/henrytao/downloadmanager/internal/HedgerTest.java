@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HedgerTest {
+
+  private static final Request REQUEST = new Request.Builder().url("http://example.com/file").build();
+
+  private static final long SLOW = 2000;
+
+  @Test
+  public void testDefaultDelay() {
+    Hedger hedger = new Hedger(95, 1000);
+    for (int i = 0; i < Hedger.MIN_SAMPLES - 1; i++) {
+      hedger.sample(10);
+    }
+    assertThat(hedger.getDelayInMilliseconds(), equalTo(1000L));
+  }
+
+  @Test
+  public void testExecuteKeepsFirstResponseAndCancelsLoser() throws IOException {
+    Hedger hedger = new Hedger(95, Hedger.MIN_DELAY_IN_MILLISECONDS);
+    Factory factory = new Factory(SLOW, 0);
+    Response response = hedger.execute(factory, REQUEST);
+    assertThat(response.header("call"), equalTo("1"));
+    assertThat(factory.calls.size(), equalTo(2));
+    assertThat(factory.calls.get(0).isCanceled(), equalTo(true));
+    assertThat(factory.calls.get(1).isCanceled(), equalTo(false));
+    assertThat(hedger.getHedgeCount(), equalTo(1L));
+    assertThat(hedger.getWinCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testExecuteSamplesFromStartOfFirstCall() throws IOException {
+    long delay = 2 * Hedger.MIN_DELAY_IN_MILLISECONDS;
+    Hedger hedger = new Hedger(50, delay);
+    for (int i = 0; i < Hedger.MIN_SAMPLES; i++) {
+      hedger.execute(new Factory(SLOW, 0), REQUEST);
+    }
+    // the hedges answered at once, but the first calls had been waiting for the whole delay
+    assertTrue(hedger.getDelayInMilliseconds() >= delay);
+  }
+
+  @Test
+  public void testExecuteWithoutHedge() throws IOException {
+    Hedger hedger = new Hedger(95, SLOW);
+    Factory factory = new Factory(0);
+    Response response = hedger.execute(factory, REQUEST);
+    assertThat(response.header("call"), equalTo("0"));
+    assertThat(factory.calls.size(), equalTo(1));
+    assertThat(hedger.getHedgeCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testPercentileDelay() {
+    Hedger hedger = new Hedger(90, 1000);
+    for (int i = 1; i <= 100; i++) {
+      hedger.sample(i);
+    }
+    assertThat(hedger.getDelayInMilliseconds(), equalTo(90L));
+    for (int i = 0; i < 100; i++) {
+      hedger.sample(5);
+    }
+    assertThat(hedger.getDelayInMilliseconds(), equalTo(Hedger.MIN_DELAY_IN_MILLISECONDS));
+  }
+
+  /**
+   * Answers each call after its delay, unless it is canceled first.
+   */
+  private static class FakeCall implements Call {
+
+    private final CountDownLatch canceled = new CountDownLatch(1);
+
+    private final long delay;
+
+    private final int index;
+
+    FakeCall(int index, long delay) {
+      this.index = index;
+      this.delay = delay;
+    }
+
+    @Override
+    public void cancel() {
+      canceled.countDown();
+    }
+
+    @Override
+    public void enqueue(Callback callback) {
+      new Thread(() -> {
+        try {
+          if (!canceled.await(delay, TimeUnit.MILLISECONDS)) {
+            callback.onResponse(this, new Response.Builder()
+                .request(REQUEST)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .header("call", String.valueOf(index))
+                .body(ResponseBody.create(null, ""))
+                .build());
+          }
+        } catch (InterruptedException | IOException ignore) {
+        }
+      }).start();
+    }
+
+    @Override
+    public Response execute() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return canceled.getCount() == 0;
+    }
+
+    @Override
+    public boolean isExecuted() {
+      return true;
+    }
+
+    @Override
+    public Request request() {
+      return REQUEST;
+    }
+  }
+
+  private static class Factory implements Call.Factory {
+
+    private final List<FakeCall> calls = new ArrayList<>();
+
+    private final long[] delays;
+
+    Factory(long... delays) {
+      this.delays = delays;
+    }
+
+    @Override
+    public synchronized Call newCall(Request request) {
+      FakeCall call = new FakeCall(calls.size(), delays[calls.size()]);
+      calls.add(call);
+      return call;
+    }
+  }
+}
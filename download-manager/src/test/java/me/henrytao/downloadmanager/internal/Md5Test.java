@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class Md5Test {
+
+  private static String md5(byte[] data) throws Exception {
+    StringBuilder builder = new StringBuilder();
+    for (byte value : MessageDigest.getInstance("MD5").digest(data)) {
+      builder.append(String.format(Locale.US, "%02x", value & 0xff));
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertThat(new Md5().toHexString(), equalTo("d41d8cd98f00b204e9800998ecf8427e"));
+  }
+
+  @Test
+  public void testInvalidState() {
+    assertThat(Md5.from("abc"), nullValue());
+    assertThat(Md5.from(null), nullValue());
+  }
+
+  @Test
+  public void testMatchMessageDigest() throws Exception {
+    Random random = new Random(7);
+    for (int length : new int[]{1, 55, 56, 63, 64, 65, 127, 128, 1000, 100000}) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+      Md5 md5 = new Md5();
+      int offset = 0;
+      while (offset < length) {
+        int count = Math.min(length - offset, 1 + random.nextInt(300));
+        md5.update(data, offset, count);
+        offset += count;
+      }
+      assertThat(md5.toHexString(), equalTo(md5(data)));
+    }
+  }
+
+  @Test
+  public void testRestoreState() throws Exception {
+    byte[] data = new byte[10007];
+    new Random(11).nextBytes(data);
+    Md5 md5 = new Md5();
+    md5.update(data, 0, 4099);
+    String intermediate = md5.toHexString();
+
+    Md5 restored = Md5.from(md5.getState());
+    //noinspection ConstantConditions
+    assertThat(restored.getCount(), equalTo(4099L));
+    assertThat(restored.toHexString(), equalTo(intermediate));
+    restored.update(data, 4099, data.length - 4099);
+    assertThat(restored.toHexString(), equalTo(md5(data)));
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class MirrorsTest {
+
+  @Test
+  public void testAcquireSpreadsAndPrefersFaster() {
+    Mirrors<String> mirrors = new Mirrors<>("a", Arrays.asList("b", "c"));
+    assertThat(mirrors.acquire(), equalTo("a"));
+    assertThat(mirrors.acquire(), equalTo("b"));
+    assertThat(mirrors.acquire(), equalTo("c"));
+    mirrors.release("a", Mirrors.MIN_MEASURED_BYTES, 1000, false);
+    mirrors.release("b", Mirrors.MIN_MEASURED_BYTES, 3000, false);
+    mirrors.release("c", Mirrors.MIN_MEASURED_BYTES, 1500, false);
+    assertThat(mirrors.acquire(), equalTo("a"));
+    assertThat(mirrors.acquire(), equalTo("c"));
+  }
+
+  @Test
+  public void testReleaseDropsFailedAndSlowButKeepsLast() {
+    Mirrors<String> mirrors = new Mirrors<>("a", Arrays.asList("b", "c"));
+    mirrors.acquire("a");
+    assertThat(mirrors.release("a", Mirrors.MIN_MEASURED_BYTES, 1000, false), equalTo(false));
+    mirrors.acquire("b");
+    assertThat(mirrors.release("b", Mirrors.MIN_MEASURED_BYTES, 1000 * (Mirrors.SLOW_RATIO + 1), false), equalTo(true));
+    mirrors.acquire("c");
+    assertThat(mirrors.release("c", 0, 1000, true), equalTo(true));
+    assertThat(mirrors.getAlive(), equalTo(Collections.singletonList("a")));
+    mirrors.acquire("a");
+    assertThat(mirrors.release("a", 0, 1000, true), equalTo(false));
+    assertThat(mirrors.acquire(), equalTo("a"));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 "Henry Tao <hi@henrytao.me>"
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.henrytao.downloadmanager.internal;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SegmentTest {
+
+  @Test
+  public void testReserveStopsAtEnd() {
+    Segment segment = new Segment(0, 0, 100, 0);
+    assertThat(segment.reserve(0, 64), equalTo(64));
+    assertThat(segment.reserve(64, 64), equalTo(36));
+    assertThat(segment.reserve(100, 64), equalTo(0));
+  }
+
+  @Test
+  public void testSplitKeepsReservedBytes() {
+    Segment segment = new Segment(0, 0, 1000, 0);
+    segment.reserve(0, 200);
+    Segment created = segment.split(1, 100);
+    assertThat(created.getStart(), equalTo(600L));
+    assertThat(created.getEnd(), equalTo(1000L));
+    assertThat(segment.getEnd(), equalTo(600L));
+    assertThat(segment.reserve(200, 1000), equalTo(400));
+  }
+
+  @Test
+  public void testSplitTooSmall() {
+    Segment segment = new Segment(0, 0, 1000, 900);
+    assertThat(segment.split(1, 100), nullValue());
+    assertThat(new Segment(0, 0, -1, 0).split(1, 100), nullValue());
+    assertThat(segment.getEnd(), equalTo(1000L));
+  }
+}
@@ -22,7 +22,6 @@ import android.net.Uri;
 import android.os.Environment;
 
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
 
 import me.henrytao.downloadmanager.DownloadManager;
 import me.henrytao.downloadmanager.Request;
@@ -59,7 +58,6 @@ public class HomeViewModel extends BaseViewModel {
         .build()
         .enqueue();
     manageSubscription("download-progress", DownloadManager.getInstance().observe(mDownloadId)
-        .debounce(500, TimeUnit.MILLISECONDS)
         .map(info -> {
           int percentage = info.getContentLength() > 0 ? (int) ((100 * info.getBytesRead()) / info.getContentLength()) : 0;
           return String.format(Locale.US, "Progress %s | %d%%", info.getId(), percentage);